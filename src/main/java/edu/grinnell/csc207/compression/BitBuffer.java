@@ -0,0 +1,96 @@
+package edu.grinnell.csc207.compression;
+
+import java.util.Arrays;
+
+/**
+ * A BitBuffer is a growable sequence of bits kept in memory. Bits can be
+ * appended at any bit offset, including the contents of another BitBuffer,
+ * which lets separately encoded pieces be stitched into one continuous
+ * bitstream.
+ */
+public class BitBuffer {
+    private static final int WORD_SIZE = 64; // bits per word
+    private static final int BYTE_SIZE = 8;  // bits per byte
+
+    private long[] words;   // the bits, msb first within each word
+    private int length;     // how many bits are in use
+
+    /** Constructs a new, empty BitBuffer. */
+    public BitBuffer() {
+        this(WORD_SIZE);
+    }
+
+    /**
+     * Constructs a new, empty BitBuffer with room for the given number of
+     * bits before it needs to grow.
+     * @param capacity the initial capacity in bits
+     */
+    public BitBuffer(int capacity) {
+        words = new long[Math.max(1, (capacity + WORD_SIZE - 1) / WORD_SIZE)];
+    }
+
+    /** @return the number of bits in this buffer */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Appends the lower n bits of the given value in big-endian style.
+     * @param bits the bits to write as a long
+     * @param n the number of bits to append (0--64)
+     */
+    public void appendBits(long bits, int n) {
+        if (n == 0) {
+            return;
+        }
+        int index = length / WORD_SIZE;
+        int offset = length % WORD_SIZE;
+        if (index + 1 >= words.length) {
+            words = Arrays.copyOf(words, Math.max(words.length * 2, index + 2));
+        }
+        // Left-align the bits, then split them across at most two words
+        long aligned = bits << (WORD_SIZE - n);
+        words[index] |= aligned >>> offset;
+        if (offset + n > WORD_SIZE) {
+            words[index + 1] = aligned << (WORD_SIZE - offset);
+        }
+        length += n;
+    }
+
+    /**
+     * Appends every bit of the given buffer to the end of this one.
+     * @param other the buffer to append
+     */
+    public void append(BitBuffer other) {
+        int full = other.length / WORD_SIZE;
+        for (int i = 0; i < full; i++) {
+            appendBits(other.words[i], WORD_SIZE);
+        }
+        int rest = other.length % WORD_SIZE;
+        if (rest > 0) {
+            appendBits(other.words[full] >>> (WORD_SIZE - rest), rest);
+        }
+    }
+
+    /**
+     * Writes every bit of this buffer to the given stream, starting at
+     * whatever bit offset the stream is currently at.
+     * @param out the stream to write to
+     */
+    public void writeTo(BitOutputStream out) {
+        int byteCount = length / BYTE_SIZE;
+        byte[] bytes = new byte[byteCount];
+        for (int i = 0; i < byteCount; i++) {
+            int shift = WORD_SIZE - BYTE_SIZE - (i % BYTE_SIZE) * BYTE_SIZE;
+            bytes[i] = (byte) (words[i / BYTE_SIZE] >>> shift);
+        }
+        out.writeBytes(bytes, 0, byteCount);
+
+        int rest = length % BYTE_SIZE;
+        if (rest > 0) {
+            int shift = WORD_SIZE - (byteCount % BYTE_SIZE) * BYTE_SIZE - rest;
+            int bits = (int) (words[byteCount / BYTE_SIZE] >>> shift) & ((1 << rest) - 1);
+            out.writeBits(bits, rest);
+        }
+    }
+}
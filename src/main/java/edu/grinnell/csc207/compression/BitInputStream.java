@@ -5,25 +5,44 @@ import java.io.*;
 /**
  * A BitInputStream reads a file bit-by-bit.
  */
-public class BitInputStream {
-    private FileInputStream input;
+public class BitInputStream implements AutoCloseable {
+    private InputStream input;
     private int digits;     // next set of digits (buffer)
     private int cursor;     // how many digits from buffer have been used
+    private byte[] bytes;   // bytes read ahead from input
+    private int position;   // index of the next unused byte in bytes
+    private int available;  // how many bytes in bytes are in use
 
     private static final int BYTE_SIZE = 8;  // digits per byte
+    private static final int READ_AHEAD = 8192; // bytes read from input at once
 
     /**
      * Constructs a new BitInputStream attached to the given file
      * @param file the file to open
      */
     public BitInputStream(String file) throws IOException {
-        input = new FileInputStream(file);
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Constructs a new BitInputStream reading from the given byte stream.
+     * Bytes are read from it ahead of time, a block at a time.
+     * @param input the stream to read
+     */
+    public BitInputStream(InputStream input) {
+        this.input = input;
+        this.bytes = new byte[READ_AHEAD];
         nextByte();
     }
 
     /** @return true iff the stream has bits left to produce */
     public boolean hasBits() { return digits != -1; }
 
+    /** Skips the rest of the current byte, unless it is at a byte boundary. */
+    public void skipToByte() {
+        if (digits != -1 && cursor != BYTE_SIZE - 1) { nextByte(); }
+    }
+
     /**
      * Reads a bit from the stream in big-endian order (msb first)
      * @return the next bit from input (0 or 1) or -1 if the stream is out
@@ -54,13 +73,55 @@ public class BitInputStream {
         return ret;
     }
 
-    /** Refreshes the internal buffer with the next BYTE_SIZE bits. */
-    private void nextByte() {
+    /**
+     * Reads up to len bytes into the given array, each in big-endian order.
+     * Blocks until len bytes are read or the stream runs out of data.
+     * @param buf the array to read into
+     * @param off the index of the first byte to fill
+     * @param len the number of bytes to read
+     * @return the number of bytes read, or -1 if the stream is out of data
+     */
+    public int readBytes(byte[] buf, int off, int len) {
+        if (digits == -1) { return -1; }
+        if (len == 0) { return 0; }
+        if (cursor != BYTE_SIZE - 1) {
+            // Not at a byte boundary, so go through readBits
+            int n = 0;
+            while (n < len && hasBits()) {
+                int b = readBits(BYTE_SIZE);
+                if (b == -1) { break; }
+                buf[off + n++] = (byte) b;
+            }
+            return n;
+        }
+        // The buffer already holds the next byte, then come the bytes read
+        // ahead, and the rest come straight from the underlying stream
+        buf[off] = (byte) digits;
+        int n = 1;
+        int ahead = Math.min(len - n, available - position);
+        System.arraycopy(bytes, position, buf, off + n, ahead);
+        position += ahead;
+        n += ahead;
         try {
-            digits = input.read();
+            n += input.readNBytes(buf, off + n, len - n);
         } catch (IOException e) {
             throw new RuntimeException(e.toString());
         }
+        nextByte();
+        return n;
+    }
+
+    /** Refreshes the internal buffer with the next BYTE_SIZE bits. */
+    private void nextByte() {
+        if (position == available) {
+            try {
+                available = Math.max(0, input.read(bytes, 0, bytes.length));
+            } catch (IOException e) {
+                throw new RuntimeException(e.toString());
+            }
+            position = 0;
+        }
+        digits = position < available ? bytes[position++] & 0xFF : -1;
         cursor = BYTE_SIZE - 1;
     }
 
@@ -3,10 +3,11 @@ package edu.grinnell.csc207.compression;
 import java.io.*;
 
 /**
- * A BitOutputStream allows bit-by-bit writing to a file.
+ * A BitOutputStream allows bit-by-bit writing to a file. Write failures
+ * are thrown as UncheckedIOExceptions.
  */
-public class BitOutputStream {
-    private PrintStream output;
+public class BitOutputStream implements AutoCloseable {
+    private OutputStream output;
     private int digits;     // a buffer used to build up next set of digits
     private int cursor;     // our current position in the buffer.
     private boolean debug;  // set to true to write ASCII 0s and 1s rather than
@@ -21,7 +22,7 @@ public class BitOutputStream {
      * @throws FileNotFoundException if the file is not found
      */
     public BitOutputStream(String file, boolean debug) throws IOException {
-        this.output = new PrintStream(file);
+        this.output = new BufferedOutputStream(new FileOutputStream(file));
         this.debug = debug;
         digits = 0;
         cursor = BYTE_SIZE - 1;
@@ -36,6 +37,17 @@ public class BitOutputStream {
         this(file, false);
     }
 
+    /**
+     * Constructs a new BitOutputStream writing to the given byte stream.
+     * @param out the stream to write to
+     */
+    public BitOutputStream(OutputStream out) {
+        this.output = out;
+        this.debug = false;
+        digits = 0;
+        cursor = BYTE_SIZE - 1;
+    }
+
     /**
      * Writes the given bit to the stream.
      * @param bit the bit to write (0 or 1)
@@ -44,7 +56,7 @@ public class BitOutputStream {
         if (bit < 0 || bit > 1) {
             throw new IllegalArgumentException("Illegal bit: " + bit);
         } else if (debug) {
-            output.print(bit);
+            write('0' + bit);
         } else {
             digits += bit << cursor;
             cursor--;
@@ -65,6 +77,34 @@ public class BitOutputStream {
         }
     }
 
+    /**
+     * Writes the given bytes to the stream, each in big-endian style. The
+     * stream does not need to be at a byte boundary.
+     * @param bytes the bytes to write
+     * @param off the index of the first byte to write
+     * @param len the number of bytes to write
+     */
+    public void writeBytes(byte[] bytes, int off, int len) {
+        if (debug) {
+            for (int i = off; i < off + len; i++) {
+                writeBits(bytes[i] & 0xFF, BYTE_SIZE);
+            }
+        } else if (cursor == BYTE_SIZE - 1) {
+            write(bytes, off, len);
+        } else {
+            // Each byte completes the partial byte in the buffer, and its
+            // low bits become the start of the next one
+            int used = BYTE_SIZE - 1 - cursor;
+            byte[] shifted = new byte[len];
+            for (int i = 0; i < len; i++) {
+                int b = bytes[off + i] & 0xFF;
+                shifted[i] = (byte) (digits | (b >>> used));
+                digits = (b << (BYTE_SIZE - used)) & 0xFF;
+            }
+            write(shifted, 0, len);
+        }
+    }
+
     /**
      * Flushes the buffer. If numDigits < BYTE_SIZE, flush will pad the output
      * with extra 0s in the least-significant bits so that a full byte is
@@ -74,17 +114,50 @@ public class BitOutputStream {
         if (cursor == BYTE_SIZE - 1) {
             return;
         }
-        output.write(digits);
+        write(digits);
         digits = 0;
         cursor = BYTE_SIZE - 1;
     }
 
+    /**
+     * Writes one byte to the underlying stream.
+     * @param b the byte to write
+     */
+    private void write(int b) {
+        try {
+            output.write(b);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes bytes to the underlying stream.
+     * @param bytes the bytes to write
+     * @param off the index of the first byte to write
+     * @param len the number of bytes to write
+     */
+    private void write(byte[] bytes, int off, int len) {
+        try {
+            output.write(bytes, off, len);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /** Closes the stream, flushing any remaining bits to the file */
     public void close() {
-        if (cursor >= 0) {
-            flush();
+        try {
+            if (cursor >= 0) {
+                flush();
+            }
+        } finally {
+            try {
+                output.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
-        output.close();
     }
 
     protected void finalize() {
@@ -1,10 +1,26 @@
 package edu.grinnell.csc207.compression;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * The driver for the Grin compression program.
@@ -13,6 +29,99 @@ public class Grin {
 
     private static final int MAGICNUM = 1846;
     private static final int MAGICNUMBITLENGTH = 32;
+    private static final String USAGE =
+            "Usage: java Grin [--pipelined] <encode|decode> <infile> <outfile>\n"
+            + "       java Grin append <infile> <grinfile>\n"
+            + "       java Grin serve [socket]\n"
+            + "       java Grin client <encode|decode|append> <infile> <outfile> [socket]";
+    // Monitors for appends, picked by the hash of the .grin file's path, so
+    // appends to one file take turns without keeping a monitor per file
+    private static final Object[] APPENDING = new Object[64];
+    static {
+        Arrays.setAll(APPENDING, i -> new Object());
+    }
+
+    /**
+     * Byte counts for one part of a file, along with where in the file each
+     * byte value first occurs.
+     */
+    static class Histogram {
+        private final long[] counts = new long[256];
+        private final long[] first = new long[256];
+
+        Histogram() {
+            Arrays.fill(first, Long.MAX_VALUE);
+        }
+
+        /**
+         * Counts the given bytes, which start at the given offset in the file.
+         * @param bytes the bytes to count
+         * @param length the number of bytes in use
+         * @param offset the offset of bytes[0] in the file
+         */
+        void count(byte[] bytes, int length, long offset) {
+            for (int i = 0; i < length; i++) {
+                int ch = bytes[i] & 0xFF;
+                if (counts[ch]++ == 0) {
+                    first[ch] = offset + i;
+                }
+            }
+        }
+
+        /**
+         * Adds the counts of a later part of the file to this one.
+         * @param other the histogram to add
+         */
+        void merge(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+                first[i] = Math.min(first[i], other.first[i]);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes of a range of a file, splitting it in half and
+     * counting both halves in parallel until it is at most one segment long.
+     */
+    private static class CountTask extends RecursiveTask<Histogram> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+
+        CountTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Histogram compute() {
+            if (end - start > HuffmanTree.SEGMENT_SIZE) {
+                long mid = start + (end - start) / 2;
+                CountTask left = new CountTask(channel, start, mid);
+                left.fork();
+                Histogram histogram = new CountTask(channel, mid, end).compute();
+                Histogram leftHistogram = left.join();
+                leftHistogram.merge(histogram);
+                return leftHistogram;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+            try {
+                while (buffer.hasRemaining()
+                        && channel.read(buffer, start + buffer.position()) >= 0) {
+                    continue;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Histogram histogram = new Histogram();
+            histogram.count(buffer.array(), buffer.position(), start);
+            return histogram;
+        }
+    }
 
     /**
      * Decodes the .grin file denoted by infile and writes the output to the
@@ -21,44 +130,140 @@ public class Grin {
      * @param outfile the file to ouptut to
      */
     public static void decode (String infile, String outfile) throws IOException {
-        BitInputStream in = new BitInputStream(infile);
-        BitOutputStream out = new BitOutputStream(outfile);
+        decode(infile, outfile, false);
+    }
+
+    /**
+     * Decodes the .grin file denoted by infile and writes the output to the
+     * file denoted by outfile, optionally reading and writing on their own
+     * threads while decoding (see Pipeline).
+     * @param infile the file to decode
+     * @param outfile the file to ouptut to
+     * @param pipelined true to overlap file I/O with decoding
+     */
+    public static void decode (String infile, String outfile, boolean pipelined)
+            throws IOException {
+        // Check the input before creating or truncating the output
+        checkMagic(infile);
+        if (pipelined) {
+            Pipeline.run(infile, outfile, Grin::decode);
+            return;
+        }
+        try (BitInputStream in = new BitInputStream(infile);
+             BitOutputStream out = new BitOutputStream(outfile)) {
+            decode(in, out);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-        // Read the .grin magic number
-        int magicNumber = in.readBits(MAGICNUMBITLENGTH);
-        if (magicNumber != MAGICNUM) {
-            System.out.println("Infile is not a valid .grin file");
-           throw new IllegalArgumentException(); 
+    /**
+     * Checks that the file denoted by file starts with the .grin magic
+     * number.
+     * @param file the file to check
+     * @throws IllegalArgumentException if it does not
+     */
+    private static void checkMagic (String file) throws IOException {
+        try (BitInputStream in = new BitInputStream(file)) {
+            if (in.readBits(MAGICNUMBITLENGTH) != MAGICNUM) {
+                throw new IllegalArgumentException(file + " is not a valid .grin file");
+            }
         }
+    }
 
-        // Re-build the serialized HuffmanTree from the infile
-        HuffmanTree huffmanTree = new HuffmanTree(in);
-        huffmanTree.decode(in, out);
-        
-        in.close();
-        out.close();
+    /**
+     * Decodes a .grin stream from in and writes the output to out. The
+     * stream may hold several segments one after another (see append),
+     * each starting on a byte boundary with its own magic number and tree;
+     * they are decoded in order until the stream runs out.
+     * @param in the stream to decode
+     * @param out the stream to output to
+     */
+    public static void decode (BitInputStream in, BitOutputStream out) {
+        do {
+            // Read the .grin magic number
+            int magicNumber = in.readBits(MAGICNUMBITLENGTH);
+            if (magicNumber != MAGICNUM) {
+                throw new IllegalArgumentException("Input is not a valid .grin file");
+            }
+
+            // Re-build the serialized HuffmanTree from the infile
+            HuffmanTree huffmanTree = new HuffmanTree(in);
+            huffmanTree.decode(in, out);
+
+            // Skip the padding at the end of the segment
+            in.skipToByte();
+        } while (in.hasBits());
     }
 
     /**
      * Creates a mapping from 8-bit sequences to number-of-occurrences of
-     * those sequences in the given file. To do this, read the file using a
-     * BitInputStream, consuming 8 bits at a time.
+     * those sequences in the given file. The file is split into segments
+     * that are counted in parallel and then merged.
      * @param file the file to read
      * @return a freqency map for the given file
      */
-    public static Map<Short, Integer> createFrequencyMap (String file) throws IOException{
-        BitInputStream in = new BitInputStream(file);
-        Map<Short, Integer> freqMap = new HashMap<>();
-        while (in.hasBits()) {
-           short ch = (short) in.readBits(8);
-                // if already in the map, increase the frequency by one, if not, add a new pair
-            if(freqMap.containsKey(ch)) {
-                freqMap.put(ch, freqMap.get(ch) + 1);
-            } else {
-                freqMap.put(ch, 1);
-            }    
-        }
-        in.close();
+    public static Map<Short, Long> createFrequencyMap (String file) throws IOException{
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            return createFrequencyMap(channel, channel.size());
+        }
+    }
+
+    /**
+     * Creates a frequency map of the first length bytes of the given file,
+     * counting segments in parallel.
+     * @param channel the file to read
+     * @param length the number of bytes to count
+     * @return a freqency map for those bytes
+     */
+    private static Map<Short, Long> createFrequencyMap (FileChannel channel, long length)
+            throws IOException {
+        try {
+            return toFrequencyMap(
+                    ForkJoinPool.commonPool().invoke(new CountTask(channel, 0, length)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Creates a mapping from 8-bit sequences to number-of-occurrences of
+     * those sequences in the given stream, reading it to the end.
+     * @param in the stream to read
+     * @return a freqency map for the given stream
+     */
+    public static Map<Short, Long> createFrequencyMap (InputStream in) throws IOException {
+        Histogram histogram = new Histogram();
+        byte[] bytes = new byte[HuffmanTree.SEGMENT_SIZE];
+        long offset = 0;
+        int length;
+        while ((length = in.readNBytes(bytes, 0, bytes.length)) > 0) {
+            histogram.count(bytes, length, offset);
+            offset += length;
+        }
+        return toFrequencyMap(histogram);
+    }
+
+    /**
+     * Turns the given counts into a frequency map, adding the characters in
+     * the order they first appear in the input. That way the map (and the
+     * HuffmanTree built from it) is the same as one built by reading the
+     * input from start to end.
+     * @param histogram the counts
+     * @return a freqency map of the counts
+     */
+    static Map<Short, Long> toFrequencyMap (Histogram histogram) {
+        List<Short> chars = new ArrayList<>();
+        for (short ch = 0; ch < histogram.counts.length; ch++) {
+            if (histogram.counts[ch] > 0) {
+                chars.add(ch);
+            }
+        }
+        chars.sort(Comparator.comparingLong(ch -> histogram.first[ch]));
+        Map<Short, Long> freqMap = new HashMap<>();
+        for (short ch : chars) {
+            freqMap.put(ch, histogram.counts[ch]);
+        }
         return freqMap;
     }
 
@@ -69,16 +274,173 @@ public class Grin {
      * @param outfile the file to write the output to.
      */
     public static void encode(String infile, String outfile) throws IOException {
-        BitInputStream in = new BitInputStream(infile);
-        BitOutputStream out = new BitOutputStream(outfile);
+        encode(infile, outfile, false);
+    }
 
+    /**
+     * Encodes the given file denoted by infile and writes the output to the
+     * .grin file denoted by outfile, optionally reading and writing on their
+     * own threads while encoding (see Pipeline).
+     * @param infile the file to encode.
+     * @param outfile the file to write the output to.
+     * @param pipelined true to overlap file I/O with encoding
+     */
+    public static void encode(String infile, String outfile, boolean pipelined)
+            throws IOException {
         // Create a huffmanTree from a frequency map
-        Map<Short, Integer> freqMap = createFrequencyMap(infile);
+        Map<Short, Long> freqMap = createFrequencyMap(infile);
+        HuffmanTree huffmanTree = new HuffmanTree(freqMap);
+
+        if (pipelined) {
+            Pipeline.run(infile, outfile, huffmanTree::encode);
+            return;
+        }
+        try (BitInputStream in = new BitInputStream(infile);
+             BitOutputStream out = new BitOutputStream(outfile)) {
+            huffmanTree.encode(in, out);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Encodes the file denoted by infile as a new segment at the end of the
+     * .grin file denoted by grinfile, without reading or rewriting what is
+     * already there. The segment has its own tree, fitted to just the new
+     * data. If grinfile is missing or empty, this is the same as encode.
+     *
+     * Appending is all or nothing: only the bytes of infile counted for the
+     * tree are encoded, even if the file grows in the meantime, and on any
+     * failure grinfile is cut back to its old size. Appends to the same
+     * grinfile, from this process or another, take turns.
+     * @param infile the file to encode.
+     * @param grinfile the .grin file to add to.
+     */
+    public static void append(String infile, String grinfile) throws IOException {
+        try (FileChannel input = FileChannel.open(Paths.get(infile), StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(Paths.get(grinfile), StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            // A FileLock only keeps out other processes, so threads of this
+            // one wait on a monitor first
+            Path path = Paths.get(grinfile).toRealPath();
+            Object appending = APPENDING[Math.floorMod(path.hashCode(), APPENDING.length)];
+            synchronized (appending) {
+                FileLock lock = output.lock();
+                try {
+                    append(input, output, infile, grinfile);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a segment to a locked .grin file, cutting the file back to its
+     * old size if anything goes wrong.
+     * @param input the file to encode
+     * @param output the .grin file to add to
+     * @param infile the name of the file to encode
+     * @param grinfile the name of the .grin file
+     */
+    private static void append(FileChannel input, FileChannel output, String infile,
+            String grinfile) throws IOException {
+        long size = output.size();
+        if (size > 0) {
+            // Only check the magic number, so appending does not depend on
+            // the size of the existing file
+            ByteBuffer magic = ByteBuffer.allocate(MAGICNUMBITLENGTH / 8);
+            output.read(magic, 0);
+            if (magic.hasRemaining() || magic.getInt(0) != MAGICNUM) {
+                throw new IllegalArgumentException(grinfile + " is not a valid .grin file");
+            }
+        }
+
+        long length = input.size();
+        HuffmanTree huffmanTree = new HuffmanTree(createFrequencyMap(input, length));
+        try {
+            output.position(size);
+            BitOutputStream out = new BitOutputStream(
+                    new BufferedOutputStream(new ChannelOutputStream(output)));
+            HuffmanTree.Encoder encoder = huffmanTree.encoder(out);
+            ByteBuffer buffer =
+                    ByteBuffer.allocate((int) Math.min(HuffmanTree.batchSize(), length));
+            for (long position = 0; position < length; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                int n = input.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException(infile + " was cut short while appending it");
+                }
+                encoder.write(buffer.array(), 0, n);
+                position += n;
+            }
+            encoder.finish();
+            out.close();
+        } catch (UncheckedIOException e) {
+            output.truncate(size);
+            throw e.getCause();
+        } catch (IOException | RuntimeException | Error e) {
+            output.truncate(size);
+            throw e;
+        }
+    }
+
+    /**
+     * An OutputStream that writes to a FileChannel and leaves it open when
+     * closed, so the file stays locked until the append ends.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+
+        ChannelOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /** Leaves the channel open, so it stays locked until the append ends. */
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Encodes the given bytes into the .grin format.
+     * @param data the bytes to encode
+     * @return the encoded bytes
+     */
+    public static byte[] encode(byte[] data) throws IOException {
+        Map<Short, Long> freqMap = createFrequencyMap(new ByteArrayInputStream(data));
         HuffmanTree huffmanTree = new HuffmanTree(freqMap);
-        huffmanTree.encode(in, out);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitOutputStream out = new BitOutputStream(bytes);
+        huffmanTree.encode(new BitInputStream(new ByteArrayInputStream(data)), out);
+        out.close();
+        return bytes.toByteArray();
+    }
 
-        in.close();
+    /**
+     * Decodes the given bytes from the .grin format.
+     * @param grin the bytes to decode
+     * @return the decoded bytes
+     */
+    public static byte[] decode(byte[] grin) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitOutputStream out = new BitOutputStream(bytes);
+        decode(new BitInputStream(new ByteArrayInputStream(grin)), out);
         out.close();
+        return bytes.toByteArray();
     }
 
 
@@ -89,32 +451,61 @@ public class Grin {
      */
     public static void main(String[] args) throws IOException{
 
+        // Run or talk to a long-running server (see GrinServer)
+        if (args.length >= 1 && args.length <= 2 && args[0].equals("serve")) {
+            Path socket = args.length == 2 ? Paths.get(args[1]) : GrinServer.DEFAULT_SOCKET;
+            new GrinServer(socket).serve();
+            return;
+        }
+        if ((args.length == 4 || args.length == 5) && args[0].equals("client")
+                && (args[1].equals("encode") || args[1].equals("decode")
+                    || args[1].equals("append"))) {
+            Path socket = args.length == 5 ? Paths.get(args[4]) : GrinServer.DEFAULT_SOCKET;
+            try (GrinClient client = new GrinClient(socket)) {
+                if (args[1].equals("encode")) {
+                    client.encode(args[2], args[3]);
+                } else if (args[1].equals("append")) {
+                    client.append(args[2], args[3]);
+                } else {
+                    client.decode(args[2], args[3]);
+                }
+            }
+            return;
+        }
+
+        // Check for the optional pipelined flag
+        boolean pipelined = args.length > 0 && args[0].equals("--pipelined");
+        int first = pipelined ? 1 : 0;
+
         // Check number of inputs
-        if (args.length != 3) {
-            System.out.println("Usage: java Grin <encode|decode> <infile> <outfile>");
+        if (args.length - first != 3) {
+            System.out.println(USAGE);
             System.exit(0);
         }
 
         // Read input
-        String command = args[0];
-        String infile = args[1];
-        String outfile = args[2];
+        String command = args[first];
+        String infile = args[first + 1];
+        String outfile = args[first + 2];
 
         // Validate command
-        if (!command.equals("encode") && !command.equals("decode")) {
-            System.out.println("Usage: java Grin <encode|decode> <infile> <outfile>");
+        if (!command.equals("encode") && !command.equals("decode")
+                && (pipelined || !command.equals("append"))) {
+            System.out.println(USAGE);
             System.exit(0);
         }
 
         // Process command
-        if (command.equals("decode")) {
-            decode(infile, outfile);
+        if (command.equals("append")) {
+            append(infile, outfile);
+        } else if (command.equals("decode")) {
+            decode(infile, outfile, pipelined);
         } else if (command.equals("encode")) {
-            encode(infile, outfile);
+            encode(infile, outfile, pipelined);
         }
 
         // FREQUENCY MAP DEBUGGING
-        // Map<Short, Integer> freqMap = createFrequencyMap(infile);
+        // Map<Short, Long> freqMap = createFrequencyMap(infile);
 
         // for (Map.Entry<Short, Integer> entry : freqMap.entrySet()) {
         //     System.out.println("Key: " + (char)(entry.getKey().shortValue()) + " Frequency: " + entry.getValue());
@@ -124,7 +515,7 @@ public class Grin {
         // BitInputStream in = new BitInputStream("files/huffman-example.txt");
         // BitOutputStream out = new BitOutputStream("files/outputcompr.grin");
 
-        // Map<Short, Integer> freqMap = new HashMap<>();
+        // Map<Short, Long> freqMap = new HashMap<>();
         // freqMap.put((short) 'a', 3);
         // freqMap.put((short) ' ', 2);
         // freqMap.put((short) 'b', 2);
@@ -0,0 +1,146 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A GrinClient sends encode, decode and append requests to a GrinServer
+ * over one connection. A client is meant to be used by one thread at a
+ * time; open one per thread to send requests concurrently.
+ */
+public class GrinClient implements AutoCloseable {
+    private final SocketChannel channel;
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * Connects to the server listening on the given socket.
+     * @param socket the path of the socket
+     * @throws IOException if no server is listening there
+     */
+    public GrinClient(Path socket) throws IOException {
+        channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.connect(UnixDomainSocketAddress.of(socket));
+        in = new BufferedInputStream(Channels.newInputStream(channel));
+        out = new BufferedOutputStream(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Has the server encode the file denoted by infile into outfile.
+     * @param infile the file to encode
+     * @param outfile the file to write the output to
+     * @throws IOException if the request fails
+     */
+    public void encode(String infile, String outfile) throws IOException {
+        request("encode", infile, outfile);
+    }
+
+    /**
+     * Has the server decode the .grin file denoted by infile into outfile.
+     * @param infile the file to decode
+     * @param outfile the file to write the output to
+     * @throws IOException if the request fails
+     */
+    public void decode(String infile, String outfile) throws IOException {
+        request("decode", infile, outfile);
+    }
+
+    /**
+     * Has the server encode the file denoted by infile as a new segment at
+     * the end of the .grin file denoted by grinfile.
+     * @param infile the file to encode
+     * @param grinfile the .grin file to add to
+     * @throws IOException if the request fails
+     */
+    public void append(String infile, String grinfile) throws IOException {
+        request("append", infile, grinfile);
+    }
+
+    /**
+     * Has the server encode the given bytes into the .grin format.
+     * @param data the bytes to encode
+     * @return the encoded bytes
+     * @throws IOException if the request fails
+     */
+    public byte[] encode(byte[] data) throws IOException {
+        return request("encode", data);
+    }
+
+    /**
+     * Has the server decode the given bytes from the .grin format.
+     * @param grin the bytes to decode
+     * @return the decoded bytes
+     * @throws IOException if the request fails
+     */
+    public byte[] decode(byte[] grin) throws IOException {
+        return request("decode", grin);
+    }
+
+    /**
+     * Sends a request on files. Paths are made absolute first, since the
+     * server may be running in another directory.
+     * @param command encode, decode or append
+     * @param infile the file to read
+     * @param outfile the file to write
+     * @throws IOException if the request fails
+     */
+    private void request(String command, String infile, String outfile) throws IOException {
+        GrinServer.writeLine(out, command
+                + GrinServer.SEPARATOR + Paths.get(infile).toAbsolutePath()
+                + GrinServer.SEPARATOR + Paths.get(outfile).toAbsolutePath());
+        out.flush();
+        response();
+    }
+
+    /**
+     * Sends a request with an inline payload.
+     * @param command encode or decode
+     * @param payload the bytes to send
+     * @return the bytes sent back
+     * @throws IOException if the request fails
+     */
+    private byte[] request(String command, byte[] payload) throws IOException {
+        GrinServer.writeLine(out, command + GrinServer.INLINE
+                + GrinServer.SEPARATOR + payload.length);
+        out.write(payload);
+        out.flush();
+        String[] fields = response();
+        if (fields.length != 2) {
+            throw new ProtocolException("Missing payload length");
+        }
+        return GrinServer.readPayload(in, fields[1]);
+    }
+
+    /**
+     * Reads the response line to a request.
+     * @return the fields of the response, starting with OK
+     * @throws IOException if the server reported an error or hung up
+     */
+    private String[] response() throws IOException {
+        String line = GrinServer.readLine(in);
+        if (line == null) {
+            throw new ProtocolException("Server closed the connection");
+        }
+        String[] fields = line.split(GrinServer.SEPARATOR, 2);
+        if (!fields[0].equals(GrinServer.OK)) {
+            throw new IOException(fields.length == 2 ? fields[1] : line);
+        }
+        return fields;
+    }
+
+    /** Closes the connection to the server. */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
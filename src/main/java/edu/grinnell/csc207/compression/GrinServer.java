@@ -0,0 +1,290 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ProtocolException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A GrinServer keeps one JVM running and answers encode and decode requests
+ * over a Unix domain socket, so each file does not pay for starting and
+ * warming up a new JVM. Every connection is served on its own thread and
+ * may send any number of requests, one after another.
+ *
+ * Requests and responses start with a line of tab-separated fields:
+ * <pre>
+ * encode|decode|append TAB infile TAB outfile -&gt; OK | ERR TAB message
+ * encode-inline|decode-inline TAB length      -&gt; OK TAB length | ERR TAB message
+ * </pre>
+ * Inline requests and their OK responses are followed by length bytes of
+ * payload. Relative paths are resolved against the server's directory.
+ */
+public class GrinServer implements AutoCloseable {
+
+    /**
+     * The socket used when none is given: grin.sock in $TMPDIR, or in /tmp
+     * if TMPDIR is not set. bin/grin-client uses the same default.
+     */
+    public static final Path DEFAULT_SOCKET = defaultSocket();
+
+    static final String OK = "OK";
+    static final String ERR = "ERR";
+    static final String INLINE = "-inline";
+    static final String SEPARATOR = "\t";
+
+    // The file type bits of a Unix file mode, and the type of a socket
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    // Bytes encoded and decoded at startup so requests run compiled code
+    private static final int WARM_UP_SIZE = 1 << 20;
+    private static final int WARM_UP_ROUNDS = 5;
+
+    private final Path socket;
+    private final ExecutorService workers;
+    private ServerSocketChannel server;
+
+    /**
+     * Constructs a new GrinServer that will listen on the given socket.
+     * @param socket the path of the socket
+     */
+    public GrinServer(Path socket) {
+        this.socket = socket;
+        this.workers = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "grin-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** @return the default socket, as documented on DEFAULT_SOCKET */
+    private static Path defaultSocket() {
+        String dir = System.getenv("TMPDIR");
+        return Paths.get(dir == null || dir.isEmpty() ? "/tmp" : dir, "grin.sock");
+    }
+
+    /**
+     * Binds the socket, replacing a stale one left by an earlier server.
+     * Anything else already at the path, including the socket of a server
+     * that is still running, is left alone.
+     * @throws IOException if the socket cannot be bound
+     */
+    public synchronized void bind() throws IOException {
+        if (server == null) {
+            if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+                if (!isStale(socket)) {
+                    throw new BindException(socket + " is in use");
+                }
+                Files.delete(socket);
+            }
+            ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.bind(UnixDomainSocketAddress.of(socket));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            server = channel;
+        }
+    }
+
+    /**
+     * Checks whether the given path is a socket that no server answers on.
+     * @param path the path to check
+     * @return true if it is safe to remove
+     */
+    private static boolean isStale(Path path) {
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            if ((mode & S_IFMT) != S_IFSOCK) {
+                return false;
+            }
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            // Without file modes there is no telling what it is
+            return false;
+        }
+        try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            probe.connect(UnixDomainSocketAddress.of(path));
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Binds the socket, warms up, and accepts connections until closed.
+     * @throws IOException if the socket cannot be bound or accepting fails
+     */
+    public void serve() throws IOException {
+        bind();
+        warmUp();
+        try {
+            while (true) {
+                SocketChannel connection = server.accept();
+                workers.execute(() -> handle(connection));
+            }
+        } catch (AsynchronousCloseException e) {
+            // Closed by close()
+        }
+    }
+
+    /** Stops accepting connections and removes the socket, if it was bound. */
+    @Override
+    public synchronized void close() throws IOException {
+        workers.shutdownNow();
+        if (server != null) {
+            server.close();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /** Runs the coders over some generated text until the JIT has compiled them. */
+    private static void warmUp() throws IOException {
+        Random random = new Random(0);
+        byte[] data = new byte[WARM_UP_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + Math.min(25, (int) Math.abs(random.nextGaussian() * 6)));
+        }
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            Grin.decode(Grin.encode(data));
+        }
+    }
+
+    /**
+     * Answers requests from one connection until the client hangs up.
+     * @param connection the connection
+     */
+    private static void handle(SocketChannel connection) {
+        try (connection) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(connection));
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(connection));
+            String request;
+            while ((request = readLine(in)) != null) {
+                respond(request, in, out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away; nothing left to answer
+        }
+    }
+
+    /**
+     * Carries out one request and writes its response.
+     * @param request the request line
+     * @param in the rest of the request
+     * @param out where to write the response
+     * @throws IOException if the connection fails
+     */
+    private static void respond(String request, InputStream in, OutputStream out)
+            throws IOException {
+        String[] fields = request.split(SEPARATOR, -1);
+        String command = fields[0];
+        try {
+            if (command.endsWith(INLINE) && fields.length == 2) {
+                byte[] payload = readPayload(in, fields[1]);
+                byte[] result;
+                if (command.equals("encode" + INLINE)) {
+                    result = Grin.encode(payload);
+                } else if (command.equals("decode" + INLINE)) {
+                    result = Grin.decode(payload);
+                } else {
+                    throw new IllegalArgumentException("Unknown command: " + command);
+                }
+                writeLine(out, OK + SEPARATOR + result.length);
+                out.write(result);
+            } else if (fields.length == 3 && command.equals("encode")) {
+                Grin.encode(fields[1], fields[2]);
+                writeLine(out, OK);
+            } else if (fields.length == 3 && command.equals("decode")) {
+                Grin.decode(fields[1], fields[2]);
+                writeLine(out, OK);
+            } else if (fields.length == 3 && command.equals("append")) {
+                Grin.append(fields[1], fields[2]);
+                writeLine(out, OK);
+            } else {
+                throw new IllegalArgumentException("Unknown request: " + command);
+            }
+        } catch (ProtocolException e) {
+            // The rest of the connection can no longer be understood
+            throw e;
+        } catch (IOException | RuntimeException | Error e) {
+            // Even an Error only fails this request, not the connection
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            writeLine(out, ERR + SEPARATOR + message.replace('\n', ' '));
+        }
+    }
+
+    /**
+     * Reads the payload of an inline request.
+     * @param in the stream to read
+     * @param length the length field of the request
+     * @return the payload
+     * @throws IOException if the length is bad or the stream ends early
+     */
+    static byte[] readPayload(InputStream in, String length) throws IOException {
+        int n;
+        try {
+            n = Integer.parseInt(length);
+        } catch (NumberFormatException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            throw new ProtocolException("Bad payload length: " + length);
+        }
+        byte[] payload = in.readNBytes(n);
+        if (payload.length != n) {
+            throw new ProtocolException("Connection closed in the middle of a payload");
+        }
+        return payload;
+    }
+
+    /**
+     * Reads one line, without its line feed.
+     * @param in the stream to read
+     * @return the line, or null if the stream ended before it started
+     * @throws IOException if the stream fails
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new ProtocolException("Connection closed in the middle of a line");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes one line followed by a line feed.
+     * @param out the stream to write
+     * @param line the line
+     * @throws IOException if the stream fails
+     */
+    static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+}
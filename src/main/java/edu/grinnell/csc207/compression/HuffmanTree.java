@@ -1,6 +1,11 @@
 package edu.grinnell.csc207.compression;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 
 /**
@@ -14,34 +19,50 @@ import java.util.PriorityQueue;
  * byte chunks to the file), but Java does not have a 9-bit data type.
  * Instead, we use the next larger primitive integral type, short, to store
  * our byte values.
+ *
+ * A HuffmanTree is immutable once it is built, whether from a histogram, a
+ * dictionary of codes, or a serialized header, so one tree can be shared by
+ * any number of threads. Each call to encode or decode keeps its state in
+ * its own Encoder or Decoder, and concurrent calls are safe as long as each
+ * uses its own streams.
  */
 
 public class HuffmanTree {
-    PriorityQueue<Node> priorityQueue;
+    private final Node root;
+    // The code of each character as a path from the root, indexed by character
+    private final BitBuffer[] codes;
 
     private static final short EOF = 256;
     private static final int MAGICNUM = 1846;
     private static final int MAGICNUMBITLENGTH = 32;
-    private static final char BITPATHBEG = '2';
-    private static final char LEFT = '0';
-    private static final char RIGHT = '1';
+    private static final int LEFT = 0;
+    private static final int RIGHT = 1;
+    // Number of input bytes encoded (or counted, see Grin) by each parallel task
+    static final int SEGMENT_SIZE = 1 << 20;
+    // Most segments encoded in parallel at once
+    private static final int MAX_BATCH_SEGMENTS = 64;
+    // Number of bytes read or written at once when starting out
+    private static final int BUFFER_SIZE = 1 << 16;
 
     public static class Node implements Comparable<Node> {
-        private short ch;
-        private int freq;
-        private Node left;
-        private Node right;
-        private boolean isLeaf;
+        private final short ch;
+        private final long freq;
+        private final Node left;
+        private final Node right;
+        private final boolean isLeaf;
 
 
         // Constructors to create a HuffmanTree from a frequency map
-        public Node(short ch, int freq) {
+        public Node(short ch, long freq) {
             this.ch = ch;
             this.freq = freq;
+            this.left = null;
+            this.right = null;
             this.isLeaf = true;
         }
 
-        public Node(int freq, Node left, Node right) {
+        public Node(long freq, Node left, Node right) {
+            this.ch = 0;
             this.freq = freq;
             this.left = left;
             this.right = right;
@@ -51,19 +72,25 @@ public class HuffmanTree {
         // Constructors for serializing HuffmanTrees (decoding a serialized HuffmanTree from a file)
         public Node(short ch) {
             this.ch = ch;
+            this.freq = 0;
+            this.left = null;
+            this.right = null;
             this.isLeaf = true;
         }
 
         public Node(Node left, Node right) {
+            this.ch = 0;
+            this.freq = 0;
             this.left = left;
             this.right = right;
             this.isLeaf = false;
         }
 
-        // For a min priority queue
+        // For a min priority queue. Frequencies can be larger than an int,
+        // so compare them rather than subtracting
         @Override
         public int compareTo(Node other) {
-            return this.freq - other.freq;
+            return Long.compare(this.freq, other.freq);
         }
     }
 
@@ -71,12 +98,12 @@ public class HuffmanTree {
      * Constructs a new HuffmanTree from a frequency map.
      * @param freqs a map from 9-bit values to frequencies.
      */
-    public HuffmanTree (Map<Short, Integer> freqs) {
-        priorityQueue = new PriorityQueue<>();
+    public HuffmanTree (Map<Short, Long> freqs) {
+        PriorityQueue<Node> priorityQueue = new PriorityQueue<>();
         // Create a node of each pair of the frequency map, and add them to the queue
-        for (Map.Entry<Short, Integer> entry : freqs.entrySet()) {
+        for (Map.Entry<Short, Long> entry : freqs.entrySet()) {
             Short key = entry.getKey();
-            int value = entry.getValue();
+            long value = entry.getValue();
             Node newNode = new Node(key, value);
             priorityQueue.add(newNode);
         }
@@ -92,10 +119,8 @@ public class HuffmanTree {
             Node interNode = new Node(left.freq + right.freq, left, right);
             priorityQueue.add(interNode);
         }
-        // debugging
-        if (priorityQueue.size() == 1) {
-            System.out.println("Priority queue has size 1!");
-        }
+        this.root = priorityQueue.poll();
+        this.codes = buildCodes(root);
     }
 
     /**
@@ -104,18 +129,35 @@ public class HuffmanTree {
      * Leaf: 0 + 9 bits of a char
      * InterNode: 1
      * @param in the input stream
+     * @param depth the depth of the node being read
+     * @param seen the characters with a leaf so far, to reject duplicates
      * @return the constructed Huffman Tree
      */
-    public static Node InputStreamHelper (BitInputStream in) {
+    private static Node InputStreamHelper (BitInputStream in, int depth, boolean[] seen) {
         short oneBit = (short) in.readBit();
-        if (oneBit == 0) { // Leaf
+        if (oneBit == -1) {
+            throw new IllegalArgumentException("The serialized HuffmanTree is cut off");
+        } else if (oneBit == 0) { // Leaf
             short nineBits = (short) in.readBits(9);
+            if (nineBits == -1) {
+                throw new IllegalArgumentException("The serialized HuffmanTree is cut off");
+            } else if (nineBits > EOF) {
+                throw new IllegalArgumentException("The serialized HuffmanTree has a leaf for "
+                        + nineBits + ", which is not a character");
+            } else if (seen[nineBits]) {
+                throw new IllegalArgumentException("The serialized HuffmanTree has two leaves for "
+                        + nineBits);
+            }
+            seen[nineBits] = true;
             Node newNode = new Node(nineBits);
-            System.out.println("One new leaf!"); //debugging
             return newNode;
         } else { // Node
-            Node left = InputStreamHelper(in);
-            Node right = InputStreamHelper(in);
+            // A tree of at most EOF + 1 leaves is never deeper than EOF
+            if (depth == EOF) {
+                throw new IllegalArgumentException("The serialized HuffmanTree is too deep");
+            }
+            Node left = InputStreamHelper(in, depth + 1, seen);
+            Node right = InputStreamHelper(in, depth + 1, seen);
             Node newNode = new Node(left, right);
             return newNode;
         }
@@ -124,11 +166,18 @@ public class HuffmanTree {
     /**
      * Reads the given HuffmanTree from the given file, and constructs it.
      * @param in the input file (as a BitInputStream)
+     * @throws IllegalArgumentException if the tree is cut off or malformed
      */
     public HuffmanTree (BitInputStream in) {
-        priorityQueue = new PriorityQueue<>();
-        Node singleNode = InputStreamHelper(in);
-        priorityQueue.add(singleNode);
+        boolean[] seen = new boolean[EOF + 1];
+        Node singleNode = InputStreamHelper(in, 0, seen);
+        // This also rules out a lone leaf other than EOF, which would
+        // decode forever without reading a bit
+        if (!seen[EOF]) {
+            throw new IllegalArgumentException("The serialized HuffmanTree has no EOF leaf");
+        }
+        this.root = singleNode;
+        this.codes = buildCodes(root);
 
         //DEBUGGING
         // System.out.println(singleNode.ch);
@@ -147,6 +196,93 @@ public class HuffmanTree {
 
     }
 
+    /**
+     * Constructs a HuffmanTree around the given root.
+     * @param root the root of the tree
+     */
+    private HuffmanTree (Node root) {
+        this.root = root;
+        this.codes = buildCodes(root);
+    }
+
+    /**
+     * Recursively builds a HuffmanTree from the codes of a dictionary, all
+     * of which agree on their first depth bits
+     * @param entries the characters and their codes, as strings of 0s and 1s
+     * @param depth the number of bits already followed
+     * @return the constructed Huffman Tree
+     */
+    private static Node dictionaryHelper (List<Map.Entry<Short, String>> entries, int depth) {
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("The codes do not form a complete tree");
+        }
+        Map.Entry<Short, String> first = entries.get(0);
+        if (entries.size() == 1 && first.getValue().length() == depth) {
+            short ch = first.getKey();
+            if (ch < 0 || ch > EOF) {
+                throw new IllegalArgumentException("Not a 9-bit value: " + ch);
+            }
+            return new Node(ch);
+        }
+        // Split the codes on their next bit
+        List<Map.Entry<Short, String>> left = new ArrayList<>();
+        List<Map.Entry<Short, String>> right = new ArrayList<>();
+        for (Map.Entry<Short, String> entry : entries) {
+            String code = entry.getValue();
+            if (code.length() == depth) {
+                throw new IllegalArgumentException("Code " + code + " is a prefix of another");
+            } else if (code.charAt(depth) == '0') {
+                left.add(entry);
+            } else if (code.charAt(depth) == '1') {
+                right.add(entry);
+            } else {
+                throw new IllegalArgumentException("Not a code of 0s and 1s: " + code);
+            }
+        }
+        return new Node(dictionaryHelper(left, depth + 1), dictionaryHelper(right, depth + 1));
+    }
+
+    /**
+     * Constructs a HuffmanTree from a dictionary of codes. The codes must be
+     * prefix-free, must leave no gaps in the tree, and must include one for
+     * EOF.
+     * @param dictionary a map from 9-bit values to codes, as strings of 0s and 1s
+     * @return the HuffmanTree using those codes
+     */
+    public static HuffmanTree fromDictionary (Map<Short, String> dictionary) {
+        if (!dictionary.containsKey(EOF)) {
+            throw new IllegalArgumentException("The dictionary has no code for EOF");
+        }
+        return new HuffmanTree(dictionaryHelper(new ArrayList<>(dictionary.entrySet()), 0));
+    }
+
+    /**
+     * Recursively records the code of every leaf below node
+     * @param node the current node of the HuffmanTree
+     * @param bitPath the moves made to reach node, as a string of 0s and 1s
+     * @param dictionary the map to add the codes to
+     */
+    private static void collectCodes (Node node, String bitPath,
+            Map<Short, String> dictionary) {
+        if (node.isLeaf) {
+            dictionary.put(node.ch, bitPath);
+        } else {
+            collectCodes(node.left, bitPath + LEFT, dictionary);
+            collectCodes(node.right, bitPath + RIGHT, dictionary);
+        }
+    }
+
+    /**
+     * Returns the code of every character of this HuffmanTree, in the form
+     * accepted by fromDictionary.
+     * @return a map from 9-bit values to codes, as strings of 0s and 1s
+     */
+    public Map<Short, String> dictionary () {
+        Map<Short, String> dictionary = new HashMap<>();
+        collectCodes(root, "", dictionary);
+        return dictionary;
+    }
+
     /**
      * Recursively serializes a HuffmanTree and writes it into a file
      * For a leaf: writes 0 + 9 bits of the char
@@ -154,7 +290,7 @@ public class HuffmanTree {
      * @param out the OutputStream
      * @param HuffmanTree the given HuffmanTree
      */
-    public static void OutputStreamHelper (BitOutputStream out, Node HuffmanTree) {
+    private static void OutputStreamHelper (BitOutputStream out, Node HuffmanTree) {
         if (HuffmanTree.isLeaf) {
             // Write 0 and the bits of the character
             out.writeBit(0);
@@ -172,48 +308,128 @@ public class HuffmanTree {
      * @param out the output file as a BitOutputStream
      */
     public void serialize (BitOutputStream out) {
-        Node HuffmanTree = priorityQueue.peek();
-        OutputStreamHelper(out, HuffmanTree);
+        OutputStreamHelper(out, root);
 
     }
    
     /**
-     * Recursively searches a compressed HuffmanTree for the path of the given character
-     * Writes the path into a file when the character is found
-     * @param out the OutputStream
-     * @param node the HuffmanTree
-     * @param bitPath the path to the character, a string of 1s and 0s, keeps track of the moves made
-     * @param ch the searched for character
-     * @param dir '0' if turned left, '1' if turned right, 
-     * written into bitPath to indicate direction 
-     * @return true if a path is found
+     * Recursively records the path to every leaf of a HuffmanTree as the
+     * code for that leaf's character
+     * @param node the current node of the HuffmanTree
+     * @param bitPath the moves made to reach node, 0 for left and 1 for right
+     * @param codes the table of codes, indexed by character
      */
-    public static void encodeSearchHelper(BitOutputStream out, Node node, String bitPath, int ch, char dir) {
-        // do i need to check if right or left is null? how do we know this is a balanced tree?
-        if (dir != BITPATHBEG) {
-            bitPath += dir;
-        }
+    private static void buildCodes(Node node, BitBuffer bitPath, BitBuffer[] codes) {
         if (node.isLeaf) {
-            // System.out.println("Going into leafNode..."); // debugging
-            if (ch == node.ch) {
-                // debugging
-                System.out.println("Found the letter!");
-                System.out.println("The bitPath is " + bitPath);
-                System.out.println("The found letter is " + node.ch);
+            codes[node.ch] = bitPath;
+        } else {
+            BitBuffer left = new BitBuffer(bitPath.length() + 1);
+            left.append(bitPath);
+            left.appendBits(LEFT, 1);
+            BitBuffer right = new BitBuffer(bitPath.length() + 1);
+            right.append(bitPath);
+            right.appendBits(RIGHT, 1);
+            buildCodes(node.left, left, codes);
+            buildCodes(node.right, right, codes);
+        }
+    }
+
+    /**
+     * Builds the table of codes of a HuffmanTree
+     * @param root the root of the HuffmanTree
+     * @return the code of each character, indexed by character
+     */
+    private static BitBuffer[] buildCodes(Node root) {
+        BitBuffer[] codes = new BitBuffer[EOF + 1];
+        buildCodes(root, new BitBuffer(), codes);
+        return codes;
+    }
+
+    /**
+     * Encodes one segment of the input into its own buffer of bits.
+     * @param segment the bytes to encode
+     * @param off the index of the first byte to encode
+     * @param len the number of bytes to encode
+     * @return the encoded bits
+     */
+    private BitBuffer encodeSegment(byte[] segment, int off, int len) {
+        BitBuffer bits = new BitBuffer(len * 8);
+        for (int i = off; i < off + len; i++) {
+            BitBuffer code = codes[segment[i] & 0xFF];
+            if (code == null) {
+                throw new IllegalArgumentException(
+                        "No code for character " + (segment[i] & 0xFF));
+            }
+            bits.append(code);
+        }
+        return bits;
+    }
+
+    /**
+     * An Encoder holds the state of one encoding: the stream it writes to.
+     * It writes the .grin header when created, the codes of the bytes it is
+     * given, and the EOF code when finished.
+     */
+    public class Encoder {
+        private final BitOutputStream out;
 
-                // Cast the bitPath consisting of 0s and 1s from a string to bits
-                int mybitPath = Integer.parseInt(bitPath, 2);
+        private Encoder(BitOutputStream out) {
+            this.out = out;
+            out.writeBits(MAGICNUM, MAGICNUMBITLENGTH);
+            serialize(out);
+        }
 
-                out.writeBits(mybitPath, bitPath.length());
+        /**
+         * Encodes the given bytes. More than one segment of bytes is split
+         * into segments that are encoded in parallel, each into its own
+         * BitBuffer. The buffers are written out in order, so they are
+         * stitched into the same continuous bitstream a sequential encoder
+         * would produce.
+         * @param bytes the bytes to encode
+         * @param off the index of the first byte to encode
+         * @param len the number of bytes to encode
+         */
+        public void write(byte[] bytes, int off, int len) {
+            if (len <= SEGMENT_SIZE) {
+                encodeSegment(bytes, off, len).writeTo(out);
+                return;
+            }
+            List<ForkJoinTask<BitBuffer>> tasks = new ArrayList<>();
+            for (int start = off; start < off + len; start += SEGMENT_SIZE) {
+                int segmentStart = start;
+                int segmentLength = Math.min(SEGMENT_SIZE, off + len - start);
+                tasks.add(ForkJoinTask.adapt(
+                        () -> encodeSegment(bytes, segmentStart, segmentLength)).fork());
+            }
+            for (ForkJoinTask<BitBuffer> task : tasks) {
+                task.join().writeTo(out);
             }
-        } else {
-            // System.out.println("Not leaf node, searching branches..."); // debugging
-            // Recursively search the left and the right nodes
-            encodeSearchHelper(out, node.left, bitPath, ch, LEFT);
-            encodeSearchHelper(out, node.right, bitPath, ch, RIGHT);
         }
+
+        /** Writes the EOF code, ending the encoded stream. */
+        public void finish() {
+            codes[EOF].writeTo(out);
+        }
+    }
+
+    /**
+     * Starts encoding into the given stream, writing the .grin header.
+     * @param out the stream to write to
+     * @return the Encoder for the new encoding
+     */
+    public Encoder encoder(BitOutputStream out) {
+        return new Encoder(out);
     }
-    
+
+    /**
+     * @return the number of bytes worth handing an Encoder at once: enough
+     *         segments to keep every worker busy, up to MAX_BATCH_SEGMENTS
+     */
+    static int batchSize() {
+        return Math.min(2 * ForkJoinPool.getCommonPoolParallelism(), MAX_BATCH_SEGMENTS)
+                * SEGMENT_SIZE;
+    }
+
     /**
      * Encodes the file given as a stream of bits into a compressed format
      * using this Huffman tree. The encoded values are written, bit-by-bit
@@ -222,22 +438,20 @@ public class HuffmanTree {
      * @param out the file to write the compressed output to.
      */
     public void encode (BitInputStream in, BitOutputStream out) {
-        out.writeBits(MAGICNUM, MAGICNUMBITLENGTH);
-        serialize(out);
-
-        Node huffmanTree = priorityQueue.peek();
-        String bitPath = "";
-
-        while (in.hasBits()) {
-            // Read one char from the input file
-            int ch = in.readBits(8);
-            System.out.println("Read ch: " + ch); //debugging
-            encodeSearchHelper(out, huffmanTree, bitPath, ch, BITPATHBEG);
+        Encoder encoder = new Encoder(out);
+        // Start with a small buffer, and grow it while the input keeps
+        // coming until there is a batch of segments for every worker
+        int batchSize = batchSize();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = in.readBytes(buffer, 0, buffer.length)) > 0) {
+            encoder.write(buffer, 0, length);
+            if (length == buffer.length && buffer.length < batchSize) {
+                buffer = new byte[Math.min(buffer.length * 2, batchSize)];
+            }
         }
         // add the EOF character at the end
-        encodeSearchHelper(out, huffmanTree, bitPath, EOF, BITPATHBEG);
-
-        System.out.println("Completed reading file"); // debugging
+        encoder.finish();
     }
 
 
@@ -245,40 +459,87 @@ public class HuffmanTree {
 
     /**
      * 
-     * Reads a bitPath from an infile bit by bit, follows the path and writes the character found to the outfile
+     * Reads a bitPath from an infile bit by bit and follows the path to the character it encodes
      * @param in the InputStream with the compressed HuffmanTree to be used as the key
-     * @param out the OutputStream
      * @param huffmanTree to be used for decoding
      * @return the decoded character
+     * @throws IllegalArgumentException if the input runs out before EOF
      */
-    public static int decodeHelper(BitInputStream in, BitOutputStream out, Node huffmanTree) {
+    private static int decodeHelper(BitInputStream in, Node huffmanTree) {
         if (huffmanTree.isLeaf) {
-            int ch = huffmanTree.ch;
-            if (ch == EOF) {
-                // End of file
-                System.out.println("EOF encountered!"); // debugging
-                return 0;
-            }
-            out.writeBits(ch, 8);
-            System.out.println("One character written!" + ch); // debugging
-            return 1;
-            
+            return huffmanTree.ch;
         } else {
             // Read one bit of the bitPath
-            short oneBit = (short) in.readBit();
-            if (oneBit == 0) {
-                System.out.println("Going left"); // debugging
-                return decodeHelper(in, out, huffmanTree.left);
-            } else if (oneBit == 1){
-                System.out.println("Going right"); // debugging
-                return decodeHelper(in, out, huffmanTree.right);
+            int oneBit = in.readBit();
+            if (oneBit == LEFT) {
+                return decodeHelper(in, huffmanTree.left);
+            } else if (oneBit == RIGHT) {
+                return decodeHelper(in, huffmanTree.right);
             } else {
-                System.out.println("Something went wrong in decodeHelper"); // debugging
-                return 0;
+                throw new IllegalArgumentException("The encoded data is cut off before EOF");
             }
         }     
     }
 
+    /**
+     * A Decoder holds the state of one decoding: the stream it reads from,
+     * and whether it has reached EOF. It starts just after the serialized
+     * HuffmanTree.
+     */
+    public class Decoder {
+        private final BitInputStream in;
+        private boolean done;
+
+        private Decoder(BitInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Decodes the next character.
+         * @return the decoded character, or -1 once EOF has been reached
+         * @throws IllegalArgumentException if the input runs out before EOF
+         */
+        public int read() {
+            if (!done) {
+                int ch = decodeHelper(in, root);
+                if (ch != EOF) {
+                    return ch;
+                }
+                done = true;
+            }
+            return -1;
+        }
+
+        /**
+         * Decodes characters into the given array until it is full or EOF
+         * is reached.
+         * @param bytes the array to decode into
+         * @param off the index of the first byte to fill
+         * @param len the number of bytes to decode
+         * @return the number of bytes decoded, or -1 once EOF has been reached
+         */
+        public int read(byte[] bytes, int off, int len) {
+            int n = 0;
+            while (n < len) {
+                int ch = read();
+                if (ch == -1) {
+                    break;
+                }
+                bytes[off + n++] = (byte) ch;
+            }
+            return n == 0 && done ? -1 : n;
+        }
+    }
+
+    /**
+     * Starts decoding the given stream, just after its serialized HuffmanTree.
+     * @param in the stream to read from
+     * @return the Decoder for the new decoding
+     */
+    public Decoder decoder(BitInputStream in) {
+        return new Decoder(in);
+    }
+
     /**
      * Decodes a stream of huffman codes from a file given as a stream of
      * bits into their uncompressed form, saving the results to the given
@@ -288,13 +549,12 @@ public class HuffmanTree {
      * @param out the file to write the decompressed output to.
      */
     public void decode (BitInputStream in, BitOutputStream out) {
-        Node huffmanNode = priorityQueue.peek();
-        while (true) {
-            // Loop until all bitPaths in the inputStream are exhausted
-            int result = decodeHelper(in, out, huffmanNode);
-            if (result == 0) {
-                break;
-            }
+        Decoder decoder = new Decoder(in);
+        // Collect decoded characters and write them out a buffer at a time
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = decoder.read(buffer, 0, buffer.length)) > 0) {
+            out.writeBytes(buffer, 0, length);
         }
     }
 }
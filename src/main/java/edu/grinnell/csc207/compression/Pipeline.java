@@ -0,0 +1,395 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A Pipeline runs a coding stage with its file I/O moved onto separate
+ * threads. A reader thread fills chunks from the input file, the calling
+ * thread codes them, and a writer thread drains the coded chunks into the
+ * output file. Stages are connected by Rings: bounded pools of reusable
+ * chunks, so a stage that runs ahead blocks until the next one catches up.
+ * A failure in any stage stops the other two and is rethrown to the caller.
+ */
+public class Pipeline {
+
+    /** The number of bytes held by each chunk. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    /** The number of chunks in flight between two stages. */
+    public static final int RING_SIZE = 4;
+
+    /**
+     * A coding stage, reading bits from one stream and writing to another.
+     */
+    public interface Stage {
+        /**
+         * Codes everything it needs from in and writes the result to out.
+         * @param in the input of the stage
+         * @param out the output of the stage
+         * @throws IOException if the stage fails
+         */
+        void run(BitInputStream in, BitOutputStream out) throws IOException;
+    }
+
+    /**
+     * A reusable buffer of bytes passed between stages.
+     */
+    static class Chunk {
+        private final byte[] data;
+        private int length;
+
+        Chunk(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    /**
+     * A bounded ring of chunks between a producing and a consuming stage.
+     * The producer acquires empty chunks and publishes them once filled; the
+     * consumer takes them in order and releases them for reuse. Only
+     * RING_SIZE chunks exist, which is what bounds how far ahead the
+     * producer can run.
+     */
+    static class Ring {
+        // Marks the end of the stream on the full queue
+        private static final Chunk END = new Chunk(0);
+        // Wakes up both sides once the ring has been closed
+        private static final Chunk POISON = new Chunk(0);
+
+        // Room for every chunk plus END and POISON, so offers never block
+        private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(RING_SIZE + 2);
+        private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(RING_SIZE + 2);
+        private boolean closed;
+        private Throwable failure;
+
+        Ring() {
+            for (int i = 0; i < RING_SIZE; i++) {
+                free.add(new Chunk(CHUNK_SIZE));
+            }
+        }
+
+        /**
+         * Waits for an empty chunk to fill.
+         * @return the chunk
+         * @throws IOException if the ring was closed
+         */
+        Chunk acquire() throws IOException {
+            return take(free);
+        }
+
+        /**
+         * Hands a filled chunk to the consumer.
+         * @param chunk the chunk
+         */
+        void publish(Chunk chunk) {
+            full.add(chunk);
+        }
+
+        /** Tells the consumer that no more chunks will be published. */
+        void finish() {
+            full.add(END);
+        }
+
+        /**
+         * Waits for the next filled chunk.
+         * @return the chunk, or null at the end of the stream
+         * @throws IOException if the ring was closed
+         */
+        Chunk next() throws IOException {
+            Chunk chunk = take(full);
+            return chunk == END ? null : chunk;
+        }
+
+        /**
+         * Returns a consumed chunk to the producer.
+         * @param chunk the chunk
+         */
+        void release(Chunk chunk) {
+            free.add(chunk);
+        }
+
+        /**
+         * Closes the ring because of the given failure, waking up both sides.
+         * Only the first failure is kept.
+         * @param t the failure
+         */
+        synchronized void fail(Throwable t) {
+            if (!closed) {
+                failure = t;
+                close();
+            }
+        }
+
+        /** Closes the ring, waking up both sides. */
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                free.add(POISON);
+                full.add(POISON);
+            }
+        }
+
+        /** @return the failure that closed this ring, or null if there was none */
+        synchronized Throwable failure() {
+            return failure;
+        }
+
+        private Chunk take(BlockingQueue<Chunk> queue) throws IOException {
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting on pipeline");
+            }
+            if (chunk == POISON) {
+                // Leave it there for anyone else waiting on this queue
+                queue.add(POISON);
+                throw new IOException("Pipeline closed", failure());
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * An InputStream over the chunks published to a Ring.
+     */
+    static class RingInputStream extends InputStream {
+        private final Ring ring;
+        private Chunk chunk;
+        private int pos;
+        private boolean done;
+
+        RingInputStream(Ring ring) {
+            this.ring = ring;
+        }
+
+        /**
+         * Moves on to the next chunk if the current one is used up.
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            while (!done && (chunk == null || pos == chunk.length)) {
+                if (chunk != null) {
+                    ring.release(chunk);
+                }
+                chunk = ring.next();
+                pos = 0;
+                done = chunk == null;
+            }
+            return !done;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk.data[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk.data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        /** Stops the producer, whether or not the stream was read to the end. */
+        @Override
+        public void close() {
+            ring.close();
+        }
+    }
+
+    /**
+     * An OutputStream that fills chunks and publishes them to a Ring.
+     */
+    static class RingOutputStream extends OutputStream {
+        private final Ring ring;
+        private Chunk chunk;
+
+        RingOutputStream(Ring ring) {
+            this.ring = ring;
+        }
+
+        /** Makes sure there is a chunk with room left in it. */
+        private void reserve() throws IOException {
+            if (chunk == null) {
+                chunk = ring.acquire();
+                chunk.length = 0;
+            }
+        }
+
+        /** Publishes the current chunk if it is full. */
+        private void publishIfFull() {
+            if (chunk.length == chunk.data.length) {
+                ring.publish(chunk);
+                chunk = null;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            reserve();
+            chunk.data[chunk.length++] = (byte) b;
+            publishIfFull();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                reserve();
+                int n = Math.min(len, chunk.data.length - chunk.length);
+                System.arraycopy(b, off, chunk.data, chunk.length, n);
+                chunk.length += n;
+                off += n;
+                len -= n;
+                publishIfFull();
+            }
+        }
+
+        /** Publishes whatever is left and ends the stream. */
+        @Override
+        public void close() {
+            if (chunk != null && chunk.length > 0) {
+                ring.publish(chunk);
+                chunk = null;
+            }
+            ring.finish();
+        }
+    }
+
+    /**
+     * Reads the given file into the ring until the end of the file.
+     * @param infile the file to read
+     * @param ring the ring to fill
+     */
+    private static void read(String infile, Ring ring) {
+        try (InputStream in = new FileInputStream(infile)) {
+            while (true) {
+                Chunk chunk = ring.acquire();
+                chunk.length = in.readNBytes(chunk.data, 0, chunk.data.length);
+                if (chunk.length == 0) {
+                    ring.release(chunk);
+                    break;
+                }
+                ring.publish(chunk);
+            }
+            ring.finish();
+        } catch (Throwable t) {
+            ring.fail(t);
+        }
+    }
+
+    /**
+     * Writes every chunk of the ring to the given file.
+     * @param outfile the file to write
+     * @param ring the ring to drain
+     */
+    private static void write(String outfile, Ring ring) {
+        try (OutputStream out = new FileOutputStream(outfile)) {
+            Chunk chunk;
+            while ((chunk = ring.next()) != null) {
+                out.write(chunk.data, 0, chunk.length);
+                ring.release(chunk);
+            }
+        } catch (Throwable t) {
+            ring.fail(t);
+        }
+    }
+
+    /**
+     * Starts a daemon thread for one of the I/O stages.
+     * @param name the name of the thread
+     * @param task the stage
+     * @return the started thread
+     */
+    private static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Throws the given failure as an IOException or unchecked exception.
+     * @param t the failure
+     * @throws IOException if t is one, or is a checked exception
+     */
+    private static void rethrow(Throwable t) throws IOException {
+        if (t instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) t).getCause();
+        } else if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IOException(t);
+    }
+
+    /**
+     * Runs the given stage from infile to outfile, with reading and writing
+     * done on their own threads. Returns once outfile is completely written.
+     * @param infile the file to read
+     * @param outfile the file to write
+     * @param stage the coding stage, run on the calling thread
+     * @throws IOException if any of the three stages fails
+     */
+    public static void run(String infile, String outfile, Stage stage) throws IOException {
+        Ring input = new Ring();
+        Ring output = new Ring();
+        Thread reader = start("grin-reader", () -> read(infile, input));
+        Thread writer = start("grin-writer", () -> write(outfile, output));
+
+        Throwable failure = null;
+        try {
+            BitInputStream in = new BitInputStream(new RingInputStream(input));
+            BitOutputStream out = new BitOutputStream(new RingOutputStream(output));
+            stage.run(in, out);
+            out.close();
+            in.close();
+        } catch (IOException | RuntimeException | Error e) {
+            // Close rather than fail the rings, so a failure of the reader
+            // or writer that caused this one is still the one rethrown
+            failure = e;
+            input.close();
+            output.close();
+        }
+
+        try {
+            reader.join();
+            writer.join();
+        } catch (InterruptedException e) {
+            input.close();
+            output.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on pipeline");
+        }
+
+        // A stage failure explains whatever the coding stage ran into after it
+        if (input.failure() != null) {
+            rethrow(input.failure());
+        } else if (output.failure() != null) {
+            rethrow(output.failure());
+        } else if (failure != null) {
+            rethrow(failure);
+        }
+    }
+}
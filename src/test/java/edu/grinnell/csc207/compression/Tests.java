@@ -1,5 +1,914 @@
 package edu.grinnell.csc207.compression;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
 public class Tests {
-    // TODO: fill in with your unit tests!
+
+    /**
+     * A reproducible stream of skewed bytes, generated on the fly so that
+     * multi-GB inputs never have to be stored.
+     */
+    static class SyntheticInputStream extends InputStream {
+        private final long length;
+        private long position;
+        private long state;
+
+        SyntheticInputStream(long length, long seed) {
+            this.length = length;
+            this.state = seed | 1;
+        }
+
+        private int nextByte() {
+            // xorshift64
+            state ^= state << 13;
+            state ^= state >>> 7;
+            state ^= state << 17;
+            // Mostly a few small values, with every byte value showing up
+            return (Long.numberOfTrailingZeros(state) * 4 + (int) (state >>> 62)) & 0xFF;
+        }
+
+        @Override
+        public int read() {
+            if (position == length) {
+                return -1;
+            }
+            position++;
+            return nextByte();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, length - position);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) nextByte();
+            }
+            position += n;
+            return n;
+        }
+    }
+
+    /**
+     * Checks everything written to it against another stream.
+     */
+    static class CheckingOutputStream extends OutputStream {
+        private final InputStream expected;
+        private long written;
+        private long firstMismatch = -1;
+
+        CheckingOutputStream(InputStream expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (firstMismatch == -1 && expected.read() != (b & 0xFF)) {
+                firstMismatch = written;
+            }
+            written++;
+        }
+    }
+
+    /**
+     * Encodes data with the given tree.
+     */
+    private static byte[] encode(HuffmanTree tree, byte[] data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitOutputStream out = new BitOutputStream(bytes);
+        tree.encode(new BitInputStream(new ByteArrayInputStream(data)), out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void compareToHandlesFrequenciesBeyondInt() {
+        HuffmanTree.Node big = new HuffmanTree.Node((short) 'a', 3_000_000_000L);
+        HuffmanTree.Node small = new HuffmanTree.Node((short) 'b', 1);
+        assertTrue(big.compareTo(small) > 0);
+        assertTrue(small.compareTo(big) < 0);
+
+        HuffmanTree.Node max = new HuffmanTree.Node((short) 'c', Long.MAX_VALUE);
+        HuffmanTree.Node min = new HuffmanTree.Node((short) 'd', Long.MIN_VALUE + 1);
+        assertTrue(max.compareTo(min) > 0);
+    }
+
+    @Test
+    public void treeFromCountsBeyondIntMatchesScaledDownCounts() {
+        Map<Short, Long> huge = new HashMap<>();
+        huge.put((short) 'a', 10_000_000_000L);
+        huge.put((short) 'b', 4_000_000_000L);
+        huge.put((short) 'c', 3_000_000_000L);
+        Map<Short, Long> small = new HashMap<>();
+        small.put((short) 'a', 100L);
+        small.put((short) 'b', 40L);
+        small.put((short) 'c', 30L);
+
+        // Weights that merge in the same order (EOF counts once in both)
+        // have to give the same tree and codes
+        byte[] data = "abcabcaab".getBytes();
+        byte[] grin = encode(new HuffmanTree(huge), data);
+        assertArrayEquals(encode(new HuffmanTree(small), data), grin);
+        assertArrayEquals(data, Grin.decode(grin));
+    }
+
+    @Test
+    public void frequencyMapKeepsCountsBeyondInt() {
+        // One segment of 3 'a's to every 'b', with 'c' only in a later one
+        byte[] segment = new byte[1 << 20];
+        for (int i = 0; i < segment.length; i++) {
+            segment[i] = (byte) (i % 4 == 3 ? 'b' : 'a');
+        }
+        Grin.Histogram histogram = new Grin.Histogram();
+        histogram.count(segment, segment.length, 0);
+        // Merging a histogram into itself doubles it, as if the segment
+        // were repeated; 12 times gives 2^32 bytes in all
+        for (int i = 0; i < 12; i++) {
+            histogram.merge(histogram);
+        }
+        Grin.Histogram later = new Grin.Histogram();
+        later.count("abc".getBytes(), 3, 1L << 32);
+        histogram.merge(later);
+
+        Map<Short, Long> freqs = Grin.toFrequencyMap(histogram);
+        assertEquals((3L << 30) + 1, freqs.get((short) 'a'));
+        assertEquals((1L << 30) + 1, freqs.get((short) 'b'));
+        assertEquals(1L, freqs.get((short) 'c'));
+        assertEquals(3, freqs.size());
+    }
+
+    @Test
+    public void frequencyMapOfStream() throws IOException {
+        Map<Short, Long> freqs =
+                Grin.createFrequencyMap(new ByteArrayInputStream("abracadabra".getBytes()));
+        assertEquals(5L, freqs.get((short) 'a'));
+        assertEquals(2L, freqs.get((short) 'b'));
+        assertEquals(2L, freqs.get((short) 'r'));
+        assertEquals(1L, freqs.get((short) 'c'));
+        assertEquals(1L, freqs.get((short) 'd'));
+        assertEquals(5, freqs.size());
+    }
+
+    /**
+     * Encodes data one bit at a time from the codes in the tree's
+     * dictionary, as a reference for the bulk encoder.
+     */
+    private static byte[] encodeBitByBit(HuffmanTree tree, byte[] data) {
+        Map<Short, String> codes = tree.dictionary();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitOutputStream out = new BitOutputStream(bytes);
+        out.writeBits(1846, 32);
+        tree.serialize(out);
+        for (byte b : data) {
+            for (char bit : codes.get((short) (b & 0xFF)).toCharArray()) {
+                out.writeBit(bit - '0');
+            }
+        }
+        for (char bit : codes.get((short) 256).toCharArray()) {
+            out.writeBit(bit - '0');
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void segmentedEncodeMatchesBitByBitEncode() throws IOException {
+        // Several segments, the last one partial
+        byte[] data = new SyntheticInputStream((3 << 20) + 12_345, 8).readAllBytes();
+        HuffmanTree tree = new HuffmanTree(Grin.createFrequencyMap(new ByteArrayInputStream(data)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitOutputStream out = new BitOutputStream(bytes);
+        HuffmanTree.Encoder encoder = tree.encoder(out);
+        encoder.write(data, 0, data.length);
+        encoder.finish();
+        out.close();
+
+        byte[] expected = encodeBitByBit(tree, data);
+        assertArrayEquals(expected, bytes.toByteArray());
+        assertArrayEquals(expected, encode(tree, data));
+    }
+
+    /**
+     * Writes the given bits as 0s and 1s one at a time.
+     */
+    private static void writeBits(BitOutputStream out, String bits) {
+        for (char bit : bits.toCharArray()) {
+            out.writeBit(bit - '0');
+        }
+    }
+
+    /**
+     * Gives the lower n bits of value as a string of 0s and 1s.
+     */
+    private static String bitString(long value, int n) {
+        StringBuilder bits = new StringBuilder();
+        for (int i = n - 1; i >= 0; i--) {
+            bits.append((value >>> i) & 1);
+        }
+        return bits.toString();
+    }
+
+    @Test
+    public void bitBufferAppendsAtEveryOffset() {
+        long pattern = 0xF0E1D2C3B4A59687L;
+        for (int offset = 0; offset < 64; offset++) {
+            // offset bits, then a whole word and a partial one, so the
+            // appended bits cross one or two word boundaries
+            BitBuffer other = new BitBuffer();
+            other.appendBits(pattern, 64);
+            other.appendBits(0b101, 3);
+            BitBuffer buffer = new BitBuffer(1);
+            buffer.appendBits(~pattern, offset);
+            buffer.append(other);
+            buffer.appendBits(pattern >>> 7, 57);
+            String expected = bitString(~pattern, offset) + bitString(pattern, 64) + "101"
+                    + bitString(pattern >>> 7, 57);
+            assertEquals(expected.length(), buffer.length());
+
+            // Write at every offset within a byte as well
+            for (int start = 0; start < 8; start++) {
+                String lead = bitString(0b1011001, start);
+                ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                BitOutputStream out = new BitOutputStream(actual);
+                writeBits(out, lead);
+                buffer.writeTo(out);
+                out.close();
+                ByteArrayOutputStream reference = new ByteArrayOutputStream();
+                out = new BitOutputStream(reference);
+                writeBits(out, lead + expected);
+                out.close();
+                assertArrayEquals(reference.toByteArray(), actual.toByteArray(),
+                        "offset " + offset + ", start " + start);
+            }
+        }
+    }
+
+    @Test
+    public void writeBytesOffByteBoundary() throws IOException {
+        byte[] data = new SyntheticInputStream(1000, 9).readAllBytes();
+        for (int lead = 0; lead < 8; lead++) {
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            BitOutputStream out = new BitOutputStream(actual);
+            out.writeBits(0b1010101, lead);
+            out.writeBytes(data, 3, 900);
+            out.writeBits(0b11, 2);
+            out.close();
+
+            ByteArrayOutputStream reference = new ByteArrayOutputStream();
+            out = new BitOutputStream(reference);
+            out.writeBits(0b1010101, lead);
+            for (int i = 3; i < 903; i++) {
+                out.writeBits(data[i] & 0xFF, 8);
+            }
+            out.writeBits(0b11, 2);
+            out.close();
+            assertArrayEquals(reference.toByteArray(), actual.toByteArray(), "lead " + lead);
+        }
+    }
+
+    @Test
+    public void parallelFrequencyMapMatchesSequential(@TempDir Path dir) throws IOException {
+        // Enough segments that the counts are split up and merged
+        byte[] data = new SyntheticInputStream((5 << 20) + 777, 10).readAllBytes();
+        Path text = dir.resolve("in.txt");
+        Files.write(text, data);
+        Map<Short, Long> parallel = Grin.createFrequencyMap(text.toString());
+        Map<Short, Long> sequential = Grin.createFrequencyMap(new ByteArrayInputStream(data));
+        assertEquals(sequential, parallel);
+        assertArrayEquals(encode(new HuffmanTree(sequential), data),
+                encode(new HuffmanTree(parallel), data));
+    }
+
+    @Test
+    public void parallelFrequencyMapKeepsFirstOccurrenceOrder(@TempDir Path dir)
+            throws IOException {
+        // 'a' (97) and 'q' (113) share a bucket of a small HashMap, and have
+        // the same count, so the tree depends on which of them is put first.
+        // 'q' shows up at the very end of the first segment, 'a' only in
+        // later ones.
+        byte[] data = new byte[5 << 19];
+        Arrays.fill(data, (byte) 'b');
+        for (int i = 0; i < 100; i++) {
+            data[(1 << 20) - 1 + i * 9973] = 'q';
+            data[(1 << 20) + 5 + i * 9973] = 'a';
+        }
+        Path text = dir.resolve("in.txt");
+        Files.write(text, data);
+
+        // What the original loop, reading the file from start to end, gives
+        // (with put, which adds new keys at the end of their bucket)
+        Map<Short, Long> reference = new HashMap<>();
+        for (byte b : data) {
+            short ch = (short) (b & 0xFF);
+            reference.put(ch, reference.getOrDefault(ch, 0L) + 1);
+        }
+        Map<Short, Long> parallel = Grin.createFrequencyMap(text.toString());
+        assertEquals(new ArrayList<>(reference.keySet()), new ArrayList<>(parallel.keySet()));
+        assertArrayEquals(encode(new HuffmanTree(reference), data),
+                encode(new HuffmanTree(parallel), data));
+    }
+
+    /**
+     * Compresses and decompresses a synthetic stream bigger than 2^31 bytes
+     * without storing it. The encoder feeds the decoder through a Pipeline
+     * ring, and the decoder's output is checked against a regenerated copy
+     * of the input. Run with -Plarge-tests; set grin.large.bytes to change
+     * the size.
+     */
+    @Test
+    @Tag("large")
+    public void roundTripBeyondTwoGigabytes() throws Exception {
+        long length = Long.getLong("grin.large.bytes", 3L << 30);
+        long seed = 207;
+
+        Map<Short, Long> freqs = Grin.createFrequencyMap(new SyntheticInputStream(length, seed));
+        assertEquals(length, freqs.values().stream().mapToLong(Long::longValue).sum());
+        HuffmanTree tree = new HuffmanTree(freqs);
+
+        Pipeline.Ring ring = new Pipeline.Ring();
+        CompletableFuture<Void> encoder = CompletableFuture.runAsync(() -> {
+            BitOutputStream out = new BitOutputStream(new Pipeline.RingOutputStream(ring));
+            tree.encode(new BitInputStream(new SyntheticInputStream(length, seed)), out);
+            out.close();
+        });
+
+        CheckingOutputStream check =
+                new CheckingOutputStream(new SyntheticInputStream(length, seed));
+        BitOutputStream out = new BitOutputStream(check);
+        try {
+            Grin.decode(new BitInputStream(new Pipeline.RingInputStream(ring)), out);
+            out.close();
+        } finally {
+            // Unblocks the encoder if decoding stopped early
+            ring.close();
+        }
+        encoder.get();
+
+        assertEquals(-1, check.firstMismatch);
+        assertEquals(length, check.written);
+    }
+
+    /**
+     * Checks that no pipeline reader or writer thread is still around.
+     */
+    private static void assertNoPipelineThreads() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.isAlive() && (thread.getName().equals("grin-reader")
+                    || thread.getName().equals("grin-writer")), thread.getName());
+        }
+    }
+
+    @Test
+    public void pipelinedMatchesSequential(@TempDir Path dir) throws IOException {
+        // Several rings' worth of chunks, so every stage has to wait on the others
+        Path text = dir.resolve("in.txt");
+        Files.write(text, new SyntheticInputStream(3 << 20, 11).readAllBytes());
+        Path grin = dir.resolve("out.grin");
+        Path pipelinedGrin = dir.resolve("pipelined.grin");
+        Grin.encode(text.toString(), grin.toString(), false);
+        Grin.encode(text.toString(), pipelinedGrin.toString(), true);
+        assertArrayEquals(Files.readAllBytes(grin), Files.readAllBytes(pipelinedGrin));
+
+        Path decoded = dir.resolve("decoded.txt");
+        Grin.decode(pipelinedGrin.toString(), decoded.toString(), true);
+        assertArrayEquals(Files.readAllBytes(text), Files.readAllBytes(decoded));
+        assertNoPipelineThreads();
+    }
+
+    @Test
+    public void pipelineRethrowsStageFailures(@TempDir Path dir) throws IOException {
+        Path text = dir.resolve("in.txt");
+        Files.write(text, new SyntheticInputStream(3 << 20, 12).readAllBytes());
+        HuffmanTree tree = new HuffmanTree(Grin.createFrequencyMap(text.toString()));
+        String out = dir.resolve("out").toString();
+
+        // The reader cannot open its file
+        assertThrows(FileNotFoundException.class, () ->
+                Pipeline.run(dir.resolve("missing").toString(), out, tree::encode));
+        assertNoPipelineThreads();
+
+        // The writer cannot open its file while the coder has plenty to write
+        assertThrows(FileNotFoundException.class, () ->
+                Pipeline.run(text.toString(), dir.resolve("no/such/dir").toString(),
+                        tree::encode));
+        assertNoPipelineThreads();
+
+        // The coding stage fails on input that is not a .grin file
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () ->
+                Pipeline.run(text.toString(), out, Grin::decode));
+        assertEquals("Input is not a valid .grin file", e.getMessage());
+        assertNoPipelineThreads();
+    }
+
+    /**
+     * Encodes and decodes a sparse file bigger than 2^31 bytes by name, so
+     * the parallel histogram and the file paths of encode and decode see
+     * offsets past the range of an int. A few blocks of synthetic data sit
+     * at the start, across the 2^31 mark and at the end; the rest is
+     * zeros, so the file takes little space. The decoded output goes into a
+     * named pipe and is checked against the file as it arrives. Run with
+     * -Plarge-tests; set grin.large.bytes to change the size.
+     */
+    @Test
+    @Tag("large")
+    public void fileRoundTripBeyondTwoGigabytes(@TempDir Path dir) throws Exception {
+        long length = Long.getLong("grin.large.bytes", 3L << 30);
+        int block = 1 << 20;
+        Path text = dir.resolve("sparse.bin");
+        try (RandomAccessFile file = new RandomAccessFile(text.toFile(), "rw")) {
+            file.setLength(length);
+            long[] offsets = { 0, (1L << 31) - block / 2, length - block };
+            for (int i = 0; i < offsets.length; i++) {
+                file.seek(Math.max(0, Math.min(offsets[i], length - block)));
+                file.write(new SyntheticInputStream(block, i + 1).readAllBytes());
+            }
+        }
+
+        Map<Short, Long> freqs = Grin.createFrequencyMap(text.toString());
+        assertEquals(length, freqs.values().stream().mapToLong(Long::longValue).sum());
+        assertTrue(freqs.get((short) 0) > Integer.MAX_VALUE);
+
+        Path grin = dir.resolve("sparse.grin");
+        Grin.encode(text.toString(), grin.toString());
+
+        Path decoded = dir.resolve("decoded");
+        Process mkfifo = new ProcessBuilder("mkfifo", decoded.toString()).start();
+        assumeTrue(mkfifo.waitFor() == 0, "mkfifo is not available");
+        CheckingOutputStream check = new CheckingOutputStream(
+                new BufferedInputStream(Files.newInputStream(text)));
+        Thread checker = new Thread(() -> {
+            try (InputStream in = Files.newInputStream(decoded)) {
+                in.transferTo(check);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        // A daemon, so a failed decode that never opens the pipe cannot hang the run
+        checker.setDaemon(true);
+        checker.start();
+        Grin.decode(grin.toString(), decoded.toString());
+        checker.join();
+
+        assertEquals(-1, check.firstMismatch);
+        assertEquals(length, check.written);
+    }
+
+    @Test
+    public void serverAnswersConcurrentClients(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("grin.sock");
+        try (GrinServer server = new GrinServer(socket)) {
+            server.bind();
+            // Its own thread rather than the common pool, which accept()
+            // would keep a worker of while the encoder forks onto it
+            CompletableFuture<Void> serving = new CompletableFuture<>();
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.serve();
+                    serving.complete(null);
+                } catch (Throwable t) {
+                    serving.completeExceptionally(t);
+                }
+            }, "grin-test-server");
+            serverThread.start();
+
+            // Clients get their own threads as well, since they block on the server
+            ExecutorService clientThreads = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<?>> clients = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    byte[] data = new SyntheticInputStream(10_000 + i, i).readAllBytes();
+                    clients.add(clientThreads.submit(() -> {
+                        try (GrinClient client = new GrinClient(socket)) {
+                            for (int j = 0; j < 10; j++) {
+                                byte[] grin = client.encode(data);
+                                assertArrayEquals(Grin.encode(data), grin);
+                                assertArrayEquals(data, client.decode(grin));
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> client : clients) {
+                    client.get();
+                }
+            } finally {
+                clientThreads.shutdown();
+            }
+
+            // Requests on files, including one that fails
+            Path text = dir.resolve("in.txt");
+            Files.write(text, "abracadabra".getBytes());
+            try (GrinClient client = new GrinClient(socket)) {
+                client.encode(text.toString(), dir.resolve("out.grin").toString());
+                client.decode(dir.resolve("out.grin").toString(),
+                        dir.resolve("out.txt").toString());
+                assertThrows(IOException.class,
+                        () -> client.decode(dir.resolve("missing").toString(), "unused"));
+                IOException e = assertThrows(IOException.class,
+                        () -> client.decode(text.toString(), dir.resolve("bad.txt").toString()));
+                assertTrue(e.getMessage().endsWith("is not a valid .grin file"), e.getMessage());
+
+                // A malformed inline payload fails without taking the connection down
+                byte[] loneLeaf = packBits(bitString(1846, 32) + "0" + bitString('a', 9));
+                e = assertThrows(IOException.class, () -> client.decode(loneLeaf));
+                assertEquals("The serialized HuffmanTree has no EOF leaf", e.getMessage());
+                assertArrayEquals("abc".getBytes(), client.decode(client.encode("abc".getBytes())));
+            }
+            assertArrayEquals(Files.readAllBytes(text), Files.readAllBytes(dir.resolve("out.txt")));
+
+            server.close();
+            serving.get();
+        }
+    }
+
+    /**
+     * Counts the file descriptors this process has open, or 0 where that
+     * cannot be seen.
+     */
+    private static long openFiles() throws IOException {
+        Path fds = Paths.get("/proc/self/fd");
+        if (!Files.isDirectory(fds)) {
+            return 0;
+        }
+        try (Stream<Path> list = Files.list(fds)) {
+            return list.count();
+        }
+    }
+
+    @Test
+    public void serverOnlyReplacesStaleSockets(@TempDir Path dir) throws Exception {
+        // Not a socket at all
+        Path notes = dir.resolve("notes.txt");
+        Files.write(notes, "keep me".getBytes());
+        try (GrinServer server = new GrinServer(notes)) {
+            assertThrows(IOException.class, server::bind);
+        }
+        assertArrayEquals("keep me".getBytes(), Files.readAllBytes(notes));
+
+        // A socket left behind by a server that is gone
+        Path socket = dir.resolve("grin.sock");
+        ServerSocketChannel gone = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        gone.bind(UnixDomainSocketAddress.of(socket));
+        gone.close();
+        assertTrue(Files.exists(socket));
+        try (GrinServer server = new GrinServer(socket)) {
+            server.bind();
+
+            // A socket a server is still answering on
+            try (GrinServer second = new GrinServer(socket)) {
+                assertThrows(IOException.class, second::bind);
+            }
+            assertTrue(Files.exists(socket));
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+        }
+        assertFalse(Files.exists(socket));
+    }
+
+    @Test
+    public void failedWritesAreReported(@TempDir Path dir) throws Exception {
+        Path full = Paths.get("/dev/full");
+        assumeTrue(Files.isWritable(full), "/dev/full is not available");
+        Path text = dir.resolve("in.txt");
+        Files.write(text, new SyntheticInputStream(100_000, 13).readAllBytes());
+        Path grin = dir.resolve("in.grin");
+        Grin.encode(text.toString(), grin.toString());
+
+        assertThrows(IOException.class, () -> Grin.encode(text.toString(), full.toString()));
+        assertThrows(IOException.class, () -> Grin.decode(grin.toString(), full.toString()));
+        assertThrows(IOException.class,
+                () -> Grin.encode(text.toString(), full.toString(), true));
+
+        Path socket = dir.resolve("grin.sock");
+        try (GrinServer server = new GrinServer(socket)) {
+            server.bind();
+            Thread serverThread = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, "grin-test-server");
+            serverThread.start();
+            try (GrinClient client = new GrinClient(socket)) {
+                assertThrows(IOException.class,
+                        () -> client.encode(text.toString(), full.toString()));
+                assertThrows(IOException.class,
+                        () -> client.decode(grin.toString(), full.toString()));
+            }
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void badDecodeLeavesNoOutputOrOpenFiles(@TempDir Path dir) throws IOException {
+        Path text = dir.resolve("in.txt");
+        Files.write(text, "not a grin file".getBytes());
+        Path out = dir.resolve("out.txt");
+        long open = openFiles();
+        for (int i = 0; i < 50; i++) {
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                    () -> Grin.decode(text.toString(), out.toString()));
+            assertEquals(text + " is not a valid .grin file", e.getMessage());
+            assertThrows(IllegalArgumentException.class,
+                    () -> Grin.decode(text.toString(), out.toString(), true));
+        }
+        assertFalse(Files.exists(out));
+        // Allow for a few descriptors opened by the JVM in the meantime
+        assertTrue(openFiles() < open + 10);
+    }
+
+    /**
+     * Decodes grin with the given tree, skipping over its header.
+     */
+    private static byte[] decode(HuffmanTree tree, byte[] grin) {
+        BitInputStream in = new BitInputStream(new ByteArrayInputStream(grin));
+        in.readBits(32);
+        new HuffmanTree(in);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        HuffmanTree.Decoder decoder = tree.decoder(in);
+        int ch;
+        while ((ch = decoder.read()) != -1) {
+            bytes.write(ch);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void oneTreeSharedByManyThreads() throws Exception {
+        int threads = 16;
+        int rounds = 10;
+        // Inputs of different sizes, a couple of them big enough to be
+        // encoded in parallel segments as well
+        byte[][] inputs = new byte[threads][];
+        Map<Short, Long> freqs = new HashMap<>();
+        for (int i = 0; i < threads; i++) {
+            int length = i % 8 == 0 ? (3 << 20) + i : 1000 * (i + 1);
+            inputs[i] = new SyntheticInputStream(length, i + 1).readAllBytes();
+            Grin.createFrequencyMap(new ByteArrayInputStream(inputs[i]))
+                    .forEach((ch, count) -> freqs.merge(ch, count, Long::sum));
+        }
+        HuffmanTree tree = new HuffmanTree(freqs);
+        byte[][] expected = new byte[threads][];
+        for (int i = 0; i < threads; i++) {
+            expected[i] = encode(tree, inputs[i]);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int index = i;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    for (int round = 0; round < rounds; round++) {
+                        byte[] grin = encode(tree, inputs[index]);
+                        assertArrayEquals(expected[index], grin);
+                        assertArrayEquals(inputs[index], decode(tree, grin));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void treeFromDictionaryMatchesTreeFromHistogram() throws IOException {
+        byte[] data = new SyntheticInputStream(50_000, 3).readAllBytes();
+        HuffmanTree tree =
+                new HuffmanTree(Grin.createFrequencyMap(new ByteArrayInputStream(data)));
+        HuffmanTree copy = HuffmanTree.fromDictionary(tree.dictionary());
+        assertEquals(tree.dictionary(), copy.dictionary());
+        assertArrayEquals(encode(tree, data), encode(copy, data));
+    }
+
+    @Test
+    public void badDictionariesAreRejected() {
+        Map<Short, String> noEof = new HashMap<>();
+        noEof.put((short) 'a', "0");
+        noEof.put((short) 'b', "1");
+        assertThrows(IllegalArgumentException.class, () -> HuffmanTree.fromDictionary(noEof));
+
+        Map<Short, String> prefix = new HashMap<>();
+        prefix.put((short) 'a', "0");
+        prefix.put((short) 'b', "01");
+        prefix.put((short) 256, "1");
+        assertThrows(IllegalArgumentException.class, () -> HuffmanTree.fromDictionary(prefix));
+
+        Map<Short, String> gap = new HashMap<>();
+        gap.put((short) 'a', "00");
+        gap.put((short) 256, "1");
+        assertThrows(IllegalArgumentException.class, () -> HuffmanTree.fromDictionary(gap));
+    }
+
+    /**
+     * Packs a string of 0s and 1s into bytes, padded with 0s.
+     */
+    private static byte[] packBits(String bits) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BitOutputStream out = new BitOutputStream(bytes);
+        writeBits(out, bits);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Checks that the given serialized tree is rejected.
+     */
+    private static void assertBadTree(String bits) {
+        assertThrows(IllegalArgumentException.class, () -> new HuffmanTree(
+                new BitInputStream(new ByteArrayInputStream(packBits(bits)))));
+    }
+
+    @Test
+    public void badSerializedTreesAreRejected() {
+        String a = "0" + bitString('a', 9);
+        String b = "0" + bitString('b', 9);
+        String eof = "0" + bitString(256, 9);
+
+        // Cut off in the middle of the second leaf's character
+        assertBadTree("1" + a + "0" + "0000");
+        // A leaf for a value past EOF
+        assertBadTree("0" + bitString(300, 9));
+        // No EOF leaf
+        assertBadTree("1" + a + b);
+        // The same leaf twice
+        assertBadTree("11" + a + eof + a);
+        // Deeper than any real tree, which would otherwise overflow the stack
+        assertBadTree("1".repeat(10_000));
+
+        // A lone leaf other than EOF would decode forever
+        String magic = bitString(1846, 32);
+        assertThrows(IllegalArgumentException.class, () -> Grin.decode(packBits(magic + a)));
+        // A lone EOF leaf is the tree of an empty input
+        assertArrayEquals(new byte[0], Grin.decode(packBits(magic + eof)));
+    }
+
+    @Test
+    public void truncatedDataIsRejected() throws IOException {
+        byte[] data = new SyntheticInputStream(1000, 4).readAllBytes();
+        byte[] grin = Grin.encode(data);
+        assertThrows(IllegalArgumentException.class,
+                () -> Grin.decode(Arrays.copyOf(grin, grin.length / 2)));
+    }
+
+    @Test
+    public void appendAddsSegmentsWithoutRewriting(@TempDir Path dir) throws IOException {
+        Path grin = dir.resolve("log.grin");
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        byte[] before = new byte[0];
+        for (int i = 0; i < 4; i++) {
+            // Each part has its own mix of bytes, and one of them is empty
+            byte[] part = i == 2 ? new byte[0]
+                    : new SyntheticInputStream(1000 * (i + 1), i + 1).readAllBytes();
+            Path text = dir.resolve("part" + i);
+            Files.write(text, part);
+            all.write(part);
+
+            Grin.append(text.toString(), grin.toString());
+            byte[] after = Files.readAllBytes(grin);
+            assertArrayEquals(before, Arrays.copyOf(after, before.length));
+            before = after;
+
+            Path decoded = dir.resolve("decoded" + i);
+            Grin.decode(grin.toString(), decoded.toString());
+            assertArrayEquals(all.toByteArray(), Files.readAllBytes(decoded));
+        }
+        assertArrayEquals(all.toByteArray(), Grin.decode(before));
+    }
+
+    @Test
+    public void appendEncodesOnlyWhatItCounted(@TempDir Path dir) throws Exception {
+        Path text = dir.resolve("growing.log");
+        Path grin = dir.resolve("log.grin");
+        byte[] start = new SyntheticInputStream(8 << 20, 5).readAllBytes();
+        for (int i = 0; i < start.length; i++) {
+            start[i] = (byte) ('a' + (start[i] & 3));
+        }
+        Files.write(text, start);
+
+        // Keep adding bytes, some with no code in the tree, while appending
+        CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try (OutputStream out = Files.newOutputStream(text, StandardOpenOption.APPEND)) {
+                byte[] chunk = "new bytes\n".getBytes();
+                while (done.getCount() > 0) {
+                    out.write(chunk);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.start();
+        try {
+            Grin.append(text.toString(), grin.toString());
+        } finally {
+            done.countDown();
+            writer.join();
+        }
+
+        byte[] decoded = Grin.decode(Files.readAllBytes(grin));
+        byte[] all = Files.readAllBytes(text);
+        // The writer may get some bytes in before they are counted
+        assertTrue(decoded.length >= start.length);
+        assertArrayEquals(Arrays.copyOf(all, decoded.length), decoded);
+    }
+
+    @Test
+    public void concurrentAppendsTakeTurns(@TempDir Path dir) throws Exception {
+        Path grin = dir.resolve("log.grin");
+        int parts = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(parts);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < parts; i++) {
+                // Each part is a run of one byte value, so parts can be told apart
+                byte[] part = new byte[100_000 * (i + 1)];
+                Arrays.fill(part, (byte) ('a' + i));
+                Path text = dir.resolve("part" + i);
+                Files.write(text, part);
+                results.add(pool.submit(() -> {
+                    Grin.append(text.toString(), grin.toString());
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        byte[] decoded = Grin.decode(Files.readAllBytes(grin));
+        Map<Byte, Integer> runs = new HashMap<>();
+        for (int start = 0, end; start < decoded.length; start = end) {
+            for (end = start; end < decoded.length && decoded[end] == decoded[start]; end++) {
+                continue;
+            }
+            assertEquals(null, runs.put(decoded[start], end - start));
+        }
+        assertEquals(parts, runs.size());
+        for (int i = 0; i < parts; i++) {
+            assertEquals(100_000 * (i + 1), runs.get((byte) ('a' + i)));
+        }
+    }
+
+    @Test
+    public void appendRejectsOtherFiles(@TempDir Path dir) throws IOException {
+        Path text = dir.resolve("in.txt");
+        Files.write(text, "not a grin file".getBytes());
+        assertThrows(IllegalArgumentException.class,
+                () -> Grin.append(text.toString(), text.toString()));
+        assertArrayEquals("not a grin file".getBytes(), Files.readAllBytes(text));
+    }
 }